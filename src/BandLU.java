@@ -0,0 +1,140 @@
+/*
+ * This class holds the result of a banded LU decomposition of a
+ * BandMatrix so that it can be reused, in the same way as LUDecomposition
+ * does for a GeneralMatrix. Factorising costs O(n*kl*(kl+ku)) and each
+ * solve O(n*(kl+ku)).
+ */
+
+public class BandLU {
+    /**
+     * The factors in band storage, laid out as described in
+     * BandMatrix.factor: U occupies the leading diagonal and the kl+ku
+     * diagonals above it, and the multipliers of L the kl below.
+     */
+    private final double[] a;
+
+    /**
+     * The dimension, bandwidths and row length of the band storage.
+     */
+    private final int n, kl, ku, ldab;
+
+    /**
+     * The row interchanges: at step j row j was swapped with row piv[j].
+     */
+    private final int[] piv;
+
+    /**
+     * 1 or -1 depending on whether the number of row interchanges was even
+     * or odd, or 0 if the matrix is singular.
+     */
+    private final double sign;
+
+    /**
+     * Constructor function. This is package-private since decompositions
+     * are created by BandMatrix.lu().
+     *
+     * @param a     The factors in band storage.
+     * @param n     The dimension of the matrix.
+     * @param kl    The lower bandwidth.
+     * @param ku    The upper bandwidth.
+     * @param piv   The row interchanges.
+     * @param sign  The sign due to the row interchanges, or 0 if singular.
+     */
+    BandLU(double[] a, int n, int kl, int ku, int[] piv, double sign) {
+        this.a = a;
+        this.n = n;
+        this.kl = kl;
+        this.ku = ku;
+        this.ldab = 2*kl + ku + 1;
+        this.piv = piv;
+        this.sign = sign;
+    }
+
+    /**
+     * @return Whether the matrix is singular, i.e. a zero pivot was found.
+     */
+    public boolean isSingular() {
+        return sign == 0.0;
+    }
+
+    /**
+     * Return the determinant of the matrix, which is the product of the
+     * diagonal of U times the sign of the permutation.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        if (sign == 0.0)
+            return 0.0;
+        double det = sign;
+        for (int i = 0; i < n; i++)
+            det *= a[i*ldab + kl];
+        return det;
+    }
+
+    /**
+     * Return the determinant of the matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        if (sign == 0.0)
+            return ScaledDeterminant.of(0.0);
+        return ScaledDeterminant.product(a, kl, ldab, n, sign);
+    }
+
+    /**
+     * Return the natural logarithm of the absolute value of the
+     * determinant.
+     *
+     * @return log|det(A)|, or -Infinity if the matrix is singular.
+     */
+    public double logDeterminant() {
+        return scaledDeterminant().logAbs();
+    }
+
+    /**
+     * Return the sign of the determinant, to go with logDeterminant().
+     *
+     * @return 1, -1 or 0.
+     */
+    public double determinantSign() {
+        return scaledDeterminant().sign();
+    }
+
+    /**
+     * Solves Ax = b. The row interchanges are applied one step at a time
+     * during the forward substitution, as in LAPACK's dgbtrs, since the
+     * multipliers are stored unpermuted.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        if (b.length != n)
+            throw new MatrixException("Right-hand side has the wrong length");
+        if (sign == 0.0)
+            throw new MatrixException("Matrix is singular");
+        double[] x = b.clone();
+
+        // Forward substitution with L and the interchanges.
+        for (int j = 0; j < n; j++) {
+            int p = piv[j];
+            if (p != j) {
+                double t = x[p];
+                x[p] = x[j];
+                x[j] = t;
+            }
+            int km = Math.min(kl, n-1-j);
+            for (int r = j+1; r <= j+km; r++)
+                x[r] -= a[r*ldab + kl + j - r]*x[j];
+        }
+        // Back substitution with U, whose rows run kl+ku past the diagonal.
+        for (int j = n-1; j >= 0; j--) {
+            int len = Math.min(n-1-j, kl+ku);
+            x[j] = (x[j] - Kernels.dot(a, j*ldab + kl + 1, x, j+1, len))/a[j*ldab + kl];
+        }
+        return x;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Contains a template for a BandMatrix object. This is a square matrix
+ * which is zero except on the leading diagonal, the first kl diagonals
+ * below it and the first ku diagonals above it, so a tri-diagonal matrix
+ * has kl = ku = 1 and a pentadiagonal matrix kl = ku = 2.
+ *
+ * The entries are kept in LAPACK-style compact band storage, transposed to
+ * suit row-major Java: row i is stored contiguously with entry (i,j) at
+ * index i*ldab + kl + j - i. LU factorisation with partial pivoting can
+ * widen the upper band of U to kl + ku, so as in LAPACK's dgbsv each row
+ * reserves kl extra slots for the fill-in and ldab = 2*kl + ku + 1. This
+ * needs O(n*(kl+ku)) memory and factorising costs O(n*kl*(kl+ku)), instead
+ * of O(n^2) and O(n^3) for a GeneralMatrix.
+ */
+
+import java.util.random.RandomGenerator;
+
+public class BandMatrix extends Matrix {
+    /**
+     * The number of diagonals below and above the leading diagonal.
+     */
+    final int kl, ku;
+
+    /**
+     * The length of each stored row, 2*kl + ku + 1.
+     */
+    final int ldab;
+
+    /**
+     * The band storage described above. The last kl slots of each row are
+     * zero until the matrix is factorised.
+     */
+    final double[] ab;
+
+    /**
+     * Constructor function initialises m and n through the Matrix
+     * constructor and sets up the band storage.
+     *
+     * @param N   The dimension of the matrix.
+     * @param kl  The number of diagonals below the leading diagonal.
+     * @param ku  The number of diagonals above the leading diagonal.
+     */
+    public BandMatrix(int N, int kl, int ku) {
+        super(N, N);
+        if (N < 1)
+            throw new MatrixException("Matrix must be at least 1x1");
+        if (kl < 0 || ku < 0 || kl >= N || ku >= N)
+            throw new MatrixException("Bandwidths must be between 0 and n-1");
+        this.kl = kl;
+        this.ku = ku;
+        this.ldab = 2*kl + ku + 1;
+        this.ab = new double[N*ldab];
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param A  The BandMatrix to copy.
+     */
+    public BandMatrix(BandMatrix A) {
+        super(A.m, A.n);
+        this.kl = A.kl;
+        this.ku = A.ku;
+        this.ldab = A.ldab;
+        this.ab = A.ab.clone();
+    }
+
+    /**
+     * @return The number of diagonals below the leading diagonal.
+     */
+    public int lowerBandwidth() {
+        return kl;
+    }
+
+    /**
+     * @return The number of diagonals above the leading diagonal.
+     */
+    public int upperBandwidth() {
+        return ku;
+    }
+
+    /**
+     * Getter function: return the (i,j)th entry of the matrix, which is
+     * zero outside the band.
+     *
+     * @param i  The location in the first coordinate.
+     * @param j  The location in the second coordinate.
+     * @return   The (i,j)th entry of the matrix.
+     */
+    public double getIJ(int i, int j) {
+        if (i < 0 || i >= n || j < 0 || j >= n)
+            throw new MatrixException("Indexing is Out of Bounds");
+        if (j < i - kl || j > i + ku)
+            return 0.0;
+        return ab[i*ldab + kl + j - i];
+    }
+
+    /**
+     * Setter function for the (i,j)th entry. Entries outside the band can
+     * only be set to zero.
+     *
+     * @param i    The location in the first coordinate.
+     * @param j    The location in the second coordinate.
+     * @param val  The value to set the (i,j)th entry to.
+     */
+    public void setIJ(int i, int j, double val) {
+        if (i < 0 || i >= n || j < 0 || j >= n)
+            throw new MatrixException("Indexing is Out of Bounds");
+        if (j < i - kl || j > i + ku) {
+            if (val != 0.0)
+                throw new MatrixException("Entry lies outside the band");
+            return;
+        }
+        ab[i*ldab + kl + j - i] = val;
+    }
+
+    /**
+     * Factorises a copy of the matrix with banded Gaussian elimination and
+     * partial pivoting.
+     *
+     * @return The decomposition, which can be reused for many solves.
+     */
+    public BandLU lu() {
+        double[] a = ab.clone();
+        int[] piv = new int[n];
+        double sign = factor(a, n, kl, ku, ldab, piv);
+        return new BandLU(a, n, kl, ku, piv, sign);
+    }
+
+    /**
+     * Factorises band storage in place, in the same way as LAPACK's dgbtf2
+     * but working along rows. At step j the pivot is chosen from rows j to
+     * j+kl of column j and swapped into row j, the multipliers are stored
+     * in column j of the rows below and those rows are updated with a
+     * contiguous AXPY. As in LAPACK the multipliers of earlier steps are
+     * not swapped, so solving has to apply each interchange at the step it
+     * was made (see BandLU.solve).
+     *
+     * The update only runs as far right as row j can be non-zero, which is
+     * tracked in ju, so the work is O(n*kl*(kl+ku)).
+     *
+     * @param a     The band storage, with the fill-in slots zero.
+     * @param n     The dimension of the matrix.
+     * @param kl    The lower bandwidth.
+     * @param ku    The upper bandwidth.
+     * @param ldab  The row length, 2*kl + ku + 1.
+     * @param piv   Receives the interchanges: at step j row j was swapped
+     *              with row piv[j].
+     * @return      1 or -1 according to the parity of the interchanges, or
+     *              0 if a zero pivot was found, in which case the matrix is
+     *              singular and the factorisation stops.
+     */
+    static double factor(double[] a, int n, int kl, int ku, int ldab, int[] piv) {
+        double sign = 1.0;
+        int ju = 0;
+        for (int j = 0; j < n; j++) {
+            int km = Math.min(kl, n-1-j);
+
+            int p = j;
+            double big = Math.abs(a[j*ldab + kl]);
+            for (int r = j+1; r <= j+km; r++) {
+                double t = Math.abs(a[r*ldab + kl + j - r]);
+                if (t > big) {
+                    big = t;
+                    p = r;
+                }
+            }
+            piv[j] = p;
+            if (big == 0.0)
+                return 0.0;
+
+            ju = Math.max(ju, Math.min(n-1, p + ku));
+            int len = ju - j + 1;
+            if (p != j) {
+                Kernels.swap(len, a, j*ldab + kl, a, p*ldab + kl + j - p);
+                sign = -sign;
+            }
+
+            double pivot = a[j*ldab + kl];
+            for (int r = j+1; r <= j+km; r++) {
+                int rj = r*ldab + kl + j - r;
+                double l = a[rj]/pivot;
+                a[rj] = l;
+                if (l != 0.0)
+                    Kernels.axpy(len-1, -l, a, j*ldab + kl + 1, a, rj + 1);
+            }
+        }
+        return sign;
+    }
+
+    /**
+     * Return the determinant of this matrix, found from its banded LU
+     * decomposition.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        return lu().determinant();
+    }
+
+    /**
+     * Return the determinant of this matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        return lu().scaledDeterminant();
+    }
+
+    /**
+     * Solves Ax = b by banded LU decomposition. To solve against several
+     * right-hand sides, factorise once with lu() instead.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        return lu().solve(b);
+    }
+
+    /**
+     * Add the matrix to another matrix A. The sum with a BandMatrix or
+     * TriMatrix is a band matrix with the wider of each bandwidth and is
+     * formed in O(n*(kl+ku)); otherwise the result is a GeneralMatrix, a
+     * copy of A with the band added.
+     *
+     * @param A  The Matrix to add to this matrix.
+     * @return   The sum of this matrix with the matrix A.
+     */
+    public Matrix add(Matrix A) {
+        if (A.m != m || A.n != n)
+            throw new MatrixException("The matricies are of different dimensions so cannot be summed.");
+        Matrix sum = A.addTo(this);
+        if (sum != null)
+            return sum;
+        GeneralMatrix result = new GeneralMatrix(m, n);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < n; j++)
+                result.setIJ(i, j, A.getIJ(i, j));
+        addDense(result);
+        return result;
+    }
+
+    Matrix addTo(GeneralMatrix A) {
+        GeneralMatrix result = new GeneralMatrix(A);
+        addDense(result);
+        return result;
+    }
+
+    Matrix addTo(TriMatrix A) {
+        return addTo(A.toBand());
+    }
+
+    Matrix addTo(BandMatrix A) {
+        BandMatrix result = new BandMatrix(n, Math.max(kl, A.kl), Math.max(ku, A.ku));
+        result.addBand(A);
+        result.addBand(this);
+        return result;
+    }
+
+    /**
+     * Adds the band of this matrix to the compact n x n matrix G in place.
+     */
+    private void addDense(GeneralMatrix G) {
+        double[] r = G.array();
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i-kl), hi = Math.min(n-1, i+ku);
+            Kernels.axpy(hi-lo+1, 1.0, ab, i*ldab + kl + lo - i, r, i*n + lo);
+        }
+    }
+
+    /**
+     * Adds the band of B, whose bandwidths are no wider than this matrix's,
+     * to this matrix.
+     */
+    private void addBand(BandMatrix B) {
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i-B.kl), hi = Math.min(n-1, i+B.ku);
+            Kernels.axpy(hi-lo+1, 1.0, B.ab, i*B.ldab + B.kl + lo - i, ab, i*ldab + kl + lo - i);
+        }
+    }
+
+    /**
+     * Multiply the matrix by another matrix A. This is a 'left' product,
+     * i.e. if this matrix is called B then it calculates the product BA.
+     * The product with a BandMatrix or TriMatrix is a band matrix whose
+     * bandwidths are the sums of theirs; otherwise the result is a
+     * GeneralMatrix and each row of it is a combination of at most
+     * kl+ku+1 rows of A.
+     *
+     * @param A  The Matrix to multiply by.
+     * @return   The product of this matrix with the matrix A.
+     */
+    public Matrix multiply(Matrix A) {
+        if (A.m != n)
+            throw new MatrixException("The matrices are of incompatible dimensions for multiplication.");
+        Matrix product = A.multiplyLeftBy(this);
+        if (product != null)
+            return product;
+
+        GeneralMatrix result = new GeneralMatrix(n, A.n);
+        double[] r = result.array();
+        int w = A.n;
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i-kl), hi = Math.min(n-1, i+ku);
+            for (int k = lo; k <= hi; k++) {
+                double b = ab[i*ldab + kl + k - i];
+                if (b == 0.0)
+                    continue;
+                for (int j = 0; j < w; j++)
+                    r[i*w + j] += b*A.getIJ(k, j);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the product BG, where B is this matrix. Each row of the
+     * product is a combination of at most kl+ku+1 rows of G.
+     *
+     * @param G  The matrix on the right of the product.
+     * @return   The product.
+     */
+    GeneralMatrix multiplyDense(GeneralMatrix G) {
+        GeneralMatrix result = new GeneralMatrix(n, G.n);
+        double[] g = G.array(), r = result.array();
+        int go = G.offset(), gs = G.stride(), w = G.n;
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i-kl), hi = Math.min(n-1, i+ku);
+            for (int k = lo; k <= hi; k++) {
+                double b = ab[i*ldab + kl + k - i];
+                if (b != 0.0)
+                    Kernels.axpy(w, b, g, go + k*gs, r, i*w);
+            }
+        }
+        return result;
+    }
+
+    Matrix multiplyLeftBy(GeneralMatrix A) {
+        // Column j of the product combines the columns of A which meet
+        // column j of the band, so row i of it is built from row i of A
+        // one row of the band at a time.
+        GeneralMatrix result = new GeneralMatrix(A.m, n);
+        double[] a = A.array(), r = result.array();
+        int ao = A.offset(), as = A.stride();
+        for (int i = 0; i < A.m; i++) {
+            int ai = ao + i*as;
+            for (int k = 0; k < n; k++) {
+                double x = a[ai+k];
+                if (x == 0.0)
+                    continue;
+                int lo = Math.max(0, k-kl), hi = Math.min(n-1, k+ku);
+                Kernels.axpy(hi-lo+1, x, ab, k*ldab + kl + lo - k, r, i*n + lo);
+            }
+        }
+        return result;
+    }
+
+    Matrix multiplyLeftBy(TriMatrix A) {
+        return A.toBand().multiplyBand(this);
+    }
+
+    Matrix multiplyLeftBy(BandMatrix A) {
+        return A.multiplyBand(this);
+    }
+
+    /**
+     * Computes the band product of this matrix and B, in
+     * O(n*(kl+ku+1)*(B.kl+B.ku+1)).
+     *
+     * @param B  The matrix on the right of the product.
+     * @return   The product.
+     */
+    BandMatrix multiplyBand(BandMatrix B) {
+        BandMatrix result = new BandMatrix(n, Math.min(n-1, kl + B.kl), Math.min(n-1, ku + B.ku));
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i-kl), hi = Math.min(n-1, i+ku);
+            for (int k = lo; k <= hi; k++) {
+                double b = ab[i*ldab + kl + k - i];
+                if (b == 0.0)
+                    continue;
+                int jlo = Math.max(0, k-B.kl), jhi = Math.min(n-1, k+B.ku);
+                Kernels.axpy(jhi-jlo+1, b, B.ab, k*B.ldab + B.kl + jlo - k,
+                             result.ab, i*result.ldab + result.kl + jlo - i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Multiply the matrix by a scalar, which only touches the band.
+     *
+     * @param a  The scalar to multiply the matrix by.
+     * @return   The product of this matrix with the scalar a.
+     */
+    public Matrix multiply(double a) {
+        BandMatrix result = new BandMatrix(n, kl, ku);
+        Kernels.scale(ab.length, a, ab, 0, result.ab, 0);
+        return result;
+    }
+
+    /**
+     * Populates the band with random numbers which are uniformly
+     * distributed between 0 and 1, drawn from the current thread's
+     * generator (see RandomFill).
+     */
+    public void random() {
+        random(RandomFill.current());
+    }
+
+    /**
+     * Populates the band with random numbers which are uniformly
+     * distributed between 0 and 1, drawn from the given generator.
+     *
+     * @param rng  The source of random numbers.
+     */
+    public void random(RandomGenerator rng) {
+        for (int i = 0; i < n; i++) {
+            int lo = Math.max(0, i-kl), hi = Math.min(n-1, i+ku);
+            RandomFill.fill(ab, i*ldab + kl + lo - i, hi-lo+1, rng);
+        }
+    }
+
+    /*
+     * Main function with some manual tests.
+     */
+    public static void main(String[] args) {
+        BandMatrix p = new BandMatrix(6, 2, 2);
+        p.random(RandomFill.create(1));
+        GeneralMatrix g = new GeneralMatrix(6, 6);
+        for (int i = 0; i < 6; i++)
+            for (int j = 0; j < 6; j++)
+                g.setIJ(i, j, p.getIJ(i, j));
+
+        System.out.println("Pentadiagonal matrix: \n" + p);
+        System.out.println("Determinant: " + p.determinant());
+        System.out.println("Determinant as a GeneralMatrix: " + g.determinant() + "\n");
+
+        double[] x = p.solve(new double[] {1, 2, 3, 4, 5, 6});
+        System.out.println("Residual of the solution of Px = (1,...,6): ");
+        for (int i = 0; i < 6; i++) {
+            double s = -(i+1);
+            for (int j = 0; j < 6; j++)
+                s += p.getIJ(i, j)*x[j];
+            System.out.print(s + " ");
+        }
+        System.out.println("\n");
+        System.out.println("P squared: \n" + p.multiply(p));
+    }
+}
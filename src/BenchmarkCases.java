@@ -0,0 +1,145 @@
+/*
+ * This class sets up the operations timed by the JMH benchmarks in
+ * src/jmh/java. JMH will not generate benchmarks for classes in the
+ * default package, and classes in a named package cannot refer to the
+ * library's classes, so each benchmark looks its operation up here by
+ * name, through reflection, and times it through a DoubleSupplier.
+ *
+ * Each operation returns a value that depends on its result, which the
+ * benchmark hands back to JMH so that the work cannot be removed. The
+ * sizes each operation is timed at are the @Param values of the benchmark
+ * class it belongs to.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntFunction;
+
+public class BenchmarkCases {
+    private static final Map<String, IntFunction<DoubleSupplier>> CASES = new LinkedHashMap<>();
+
+    static {
+        for (GeneralMatrix.Algorithm alg : GeneralMatrix.Algorithm.values()) {
+            CASES.put("GeneralMatrix.decomp:" + alg, n -> {
+                GeneralMatrix a = randomGeneral(n);
+                double[] d = new double[1];
+                return () -> a.decomp(d, alg).getIJ(0, 0);
+            });
+            CASES.put("GeneralMatrix.determinant:" + alg, n -> {
+                GeneralMatrix a = randomGeneral(n);
+                return () -> a.determinant(alg);
+            });
+        }
+        CASES.put("OffHeapMatrix.decompInPlace", n -> {
+            OffHeapMatrix a = new OffHeapMatrix(n, n);
+            GeneralMatrix g = randomGeneral(n);
+            double[] d = new double[1];
+            return () -> {
+                for (int i = 0; i < n; i++)
+                    a.putRow(i, 0, g.array(), i*n, n);
+                return a.decompInPlace(d).getIJ(0, 0);
+            };
+        });
+        CASES.put("GeneralMatrix.multiply(Matrix)", n -> {
+            GeneralMatrix a = randomGeneral(n), b = randomGeneral(n);
+            return () -> a.multiply(b).getIJ(0, 0);
+        });
+        CASES.put("GeneralMatrix.add", n -> {
+            GeneralMatrix a = randomGeneral(n), b = randomGeneral(n);
+            return () -> a.add(b).getIJ(0, 0);
+        });
+        CASES.put("GeneralMatrix.random", n -> {
+            GeneralMatrix a = new GeneralMatrix(n, n);
+            return () -> {
+                a.random();
+                return a.getIJ(0, 0);
+            };
+        });
+        CASES.put("TriMatrix.decomp", n -> {
+            TriMatrix a = randomTri(n);
+            return () -> a.decomp().getIJ(0, 0);
+        });
+        CASES.put("TriMatrix.determinant", n -> {
+            TriMatrix a = randomTri(n);
+            return a::determinant;
+        });
+        CASES.put("TriMatrix.solve", n -> {
+            TriMatrix a = randomDominantTri(n);
+            double[] b = new double[n];
+            return () -> a.solve(b)[0];
+        });
+        CASES.put("TriMatrix.solveParallel", n -> {
+            TriMatrix a = randomDominantTri(n);
+            double[] b = new double[n];
+            return () -> a.solveParallel(b)[0];
+        });
+        CASES.put("TriMatrix.scaledDeterminantParallel", n -> {
+            TriMatrix a = randomTri(n);
+            return () -> a.scaledDeterminantParallel().mantissa();
+        });
+        CASES.put("BandMatrix.determinant:pentadiagonal", n -> {
+            BandMatrix a = new BandMatrix(n, Math.min(2, n-1), Math.min(2, n-1));
+            a.random(RandomFill.create(n));
+            return a::determinant;
+        });
+        CASES.put("BandMatrix.solve:pentadiagonal", n -> {
+            BandMatrix a = new BandMatrix(n, Math.min(2, n-1), Math.min(2, n-1));
+            a.random(RandomFill.create(n));
+            double[] b = new double[n];
+            return () -> a.solve(b)[0];
+        });
+        CASES.put("DeterminantDistribution.matVariance:GeneralMatrix", n -> {
+            GeneralMatrix a = new GeneralMatrix(n, n);
+            return () -> DeterminantDistribution.matVariance(a, 100);
+        });
+        CASES.put("DeterminantDistribution.matVariance:TriMatrix", n -> {
+            TriMatrix a = new TriMatrix(n);
+            return () -> DeterminantDistribution.matVariance(a, 100);
+        });
+    }
+
+    /**
+     * Sets up the named operation on matrices of size n.
+     *
+     * @param name The name of the operation, e.g. "TriMatrix.solve".
+     * @param n    The size of the matrices.
+     * @return The operation, ready to be timed.
+     */
+    public static DoubleSupplier create(String name, int n) {
+        IntFunction<DoubleSupplier> setup = CASES.get(name);
+        if (setup == null)
+            throw new IllegalArgumentException("Unknown benchmark case " + name);
+        return setup.apply(n);
+    }
+
+    private static GeneralMatrix randomGeneral(int n) {
+        GeneralMatrix a = new GeneralMatrix(n, n);
+        a.random(RandomFill.create(n));
+        return a;
+    }
+
+    private static TriMatrix randomTri(int n) {
+        TriMatrix a = new TriMatrix(n);
+        a.random(RandomFill.create(n));
+        return a;
+    }
+
+    private static TriMatrix randomDominantTri(int n) {
+        TriMatrix a = randomTri(n);
+        for (int i = 0; i < n; i++)
+            a.setIJ(i, i, a.getIJ(i, i) + 2.0);
+        return a;
+    }
+
+    /*
+     * Main function: runs every case once at the size given on the command
+     * line, 8 by default, and prints its result, as a quick check that each
+     * one sets up and runs.
+     */
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        for (String name : CASES.keySet())
+            System.out.printf("%-50s %g%n", name, create(name, n).getAsDouble());
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * This class contains the LU factorisation routines used by GeneralMatrix.
+ * All of them work in place on a flat row-major array, where the (i,j)th
+ * entry of the matrix lives at a[off + i*lda + j], and leave the factors
+ * packed as described in GeneralMatrix.decomp.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+
+class DenseLU {
+    /**
+     * The default width of the panels used by the blocked factorisation.
+     * 64 columns of doubles keeps a panel row within a few cache lines while
+     * giving the trailing update enough work per pass over memory.
+     */
+    static final int BLOCK_SIZE = 64;
+
+    /**
+     * The pool used by the parallel factorisation, created on first use.
+     */
+    private static ForkJoinPool pool;
+
+    /**
+     * The number of worker threads used by the parallel factorisation.
+     */
+    private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Matrices smaller than this are factorised serially even when the
+     * parallel algorithm is requested.
+     */
+    private static int parallelThreshold = 256;
+
+    private DenseLU() {}
+
+    /**
+     * Returns the pool used for parallel factorisations, creating it with
+     * the current parallelism level if necessary.
+     */
+    static synchronized ForkJoinPool pool() {
+        if (pool == null)
+            pool = new ForkJoinPool(parallelism);
+        return pool;
+    }
+
+    static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of worker threads. The existing pool, if any, is shut
+     * down once the tasks already submitted to it have finished.
+     */
+    static synchronized void setParallelism(int p) {
+        if (p < 1)
+            throw new MatrixException("Parallelism must be positive");
+        if (p != parallelism && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        parallelism = p;
+    }
+
+    static synchronized int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    static synchronized void setParallelThreshold(int t) {
+        if (t < 1)
+            throw new MatrixException("Threshold must be positive");
+        parallelThreshold = t;
+    }
+
+    /**
+     * Throws a MatrixException if any row of the matrix is entirely zero.
+     * Both algorithms perform this check first so that they agree on which
+     * matrices are reported as singular.
+     *
+     * @param a    The matrix storage.
+     * @param off  The index of the (0,0)th entry.
+     * @param lda  The distance between consecutive rows.
+     * @param n    The dimension of the matrix.
+     * @param vv   If not null, on exit vv[i] holds 1/max|a_ij| for row i.
+     */
+    static void checkRows(double[] a, int off, int lda, int n, double[] vv) {
+        for (int i = 0; i < n; i++) {
+            double big = 0.0, temp;
+            int r = off + i*lda;
+            for (int j = 0; j < n; j++)
+                if ((temp = Math.abs(a[r+j])) > big)
+                    big = temp;
+            if (big == 0.0)
+                throw new MatrixException("Matrix is singular");
+            if (vv != null)
+                vv[i] = 1.0/big;
+        }
+    }
+
+    /**
+     * Crout's method with implicit pivoting, as in "Numerical Recipies in C".
+     *
+     * The inner products in the book walk down column j of the matrix,
+     * which is a stride of lda in row-major storage. Here column j is first
+     * copied into col so that every inner product is between two
+     * contiguous vectors and can use Kernels.dot.
+     *
+     * @param a    The matrix storage, overwritten by the packed factors.
+     * @param off  The index of the (0,0)th entry.
+     * @param lda  The distance between consecutive rows.
+     * @param n    The dimension of the matrix.
+     * @param vv   Scratch space of length at least n.
+     * @param col  Scratch space of length at least n.
+     * @param piv  If not null, on exit row j was swapped with row piv[j]
+     *             at step j.
+     * @return     1 or -1 depending on whether the number of row
+     *             interchanges was even or odd.
+     */
+    static double crout(double[] a, int off, int lda, int n, double[] vv,
+                        double[] col, int[] piv) {
+        int    i, imax = -10, j;
+        double big, dum, sum, d = 1.0;
+
+        checkRows(a, off, lda, n, vv);
+
+        for (j = 0; j < n; j++) {
+            for (i = 0; i < n; i++)
+                col[i] = a[off+i*lda+j];
+            for (i = 0; i < j; i++) {
+                sum = col[i] - Kernels.dot(a, off+i*lda, col, 0, i);
+                col[i] = sum;
+                a[off+i*lda+j] = sum;
+            }
+            big = 0.0;
+            for (i = j; i < n; i++) {
+                sum = col[i] - Kernels.dot(a, off+i*lda, col, 0, j);
+                col[i] = sum;
+                a[off+i*lda+j] = sum;
+                if ((dum = vv[i]*Math.abs(sum)) >= big) {
+                    big  = dum;
+                    imax = i;
+                }
+            }
+            if (j != imax) {
+                swapRows(a, off, lda, n, j, imax);
+                d = -d;
+                vv[imax] = vv[j];
+            }
+            if (piv != null)
+                piv[j] = imax;
+            if (a[off+j*lda+j] == 0.0)
+                a[off+j*lda+j] = 1.0e-20;
+            if (j != n-1) {
+                dum = 1.0/a[off+j*lda+j];
+                for (i = j+1; i < n; i++)
+                    a[off+i*lda+j] *= dum;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Blocked right-looking LU factorisation with partial pivoting.
+     *
+     * The matrix is processed in panels of nb columns. Each panel is
+     * factorised with an unblocked algorithm, the pivots are applied to the
+     * whole row, the block row of U to the right of the panel is found by
+     * forward substitution and finally the trailing submatrix is updated by
+     * A22 -= L21*U12. The last step is a matrix product which does almost
+     * all of the arithmetic and is handed to Gemm, so the factorisation
+     * stays fast once the matrix no longer fits in cache.
+     *
+     * @param a     The matrix storage, overwritten by the packed factors.
+     * @param off   The index of the (0,0)th entry.
+     * @param lda   The distance between consecutive rows.
+     * @param n     The dimension of the matrix.
+     * @param nb    The panel width.
+     * @param piv   If not null, on exit row j was swapped with row piv[j]
+     *              at step j.
+     * @param pool  If not null, the trailing updates are split into blocks
+     *              of rows which are run on this pool.
+     * @return      1 or -1 depending on whether the number of row
+     *              interchanges was even or odd.
+     */
+    static double blocked(double[] a, int off, int lda, int n, int nb, int[] piv,
+                          ForkJoinPool pool) {
+        double d = 1.0;
+
+        checkRows(a, off, lda, n, null);
+
+        for (int k0 = 0; k0 < n; k0 += nb) {
+            int k1 = Math.min(k0 + nb, n);
+
+            // Factorise the panel made up of columns k0..k1-1.
+            for (int j = k0; j < k1; j++) {
+                int p = j;
+                double big = Math.abs(a[off+j*lda+j]);
+                for (int i = j+1; i < n; i++) {
+                    double temp = Math.abs(a[off+i*lda+j]);
+                    if (temp > big) {
+                        big = temp;
+                        p   = i;
+                    }
+                }
+                if (p != j) {
+                    swapRows(a, off, lda, n, j, p);
+                    d = -d;
+                }
+                if (piv != null)
+                    piv[j] = p;
+                int rj = off + j*lda;
+                if (a[rj+j] == 0.0)
+                    a[rj+j] = 1.0e-20;
+                double dum = 1.0/a[rj+j];
+                for (int i = j+1; i < n; i++) {
+                    int ri = off + i*lda;
+                    double lij = a[ri+j] *= dum;
+                    Kernels.axpy(k1-j-1, -lij, a, rj+j+1, a, ri+j+1);
+                }
+            }
+
+            if (k1 == n)
+                break;
+
+            // U12 = inv(L11)*A12.
+            for (int j = k0; j < k1; j++) {
+                int rj = off + j*lda;
+                for (int i = j+1; i < k1; i++) {
+                    int ri = off + i*lda;
+                    Kernels.axpy(n-k1, -a[ri+j], a, rj+k1, a, ri+k1);
+                }
+            }
+
+            // A22 -= L21*U12.
+            Gemm.multiply(n - k1, n - k1, k1 - k0, -1.0,
+                          a, off + k1*lda + k0, lda,
+                          a, off + k0*lda + k1, lda,
+                          a, off + k1*lda + k1, lda, pool);
+        }
+        return d;
+    }
+
+    /**
+     * Swaps rows i and j of the matrix.
+     */
+    static void swapRows(double[] a, int off, int lda, int n, int i, int j) {
+        Kernels.swap(n, a, off + i*lda, a, off + j*lda);
+    }
+}
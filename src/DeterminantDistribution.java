@@ -14,33 +14,63 @@ public class DeterminantDistribution {
      * @return The variance of the distribution.
      */
     public static double matVariance(Matrix m, int numSamples) {
-        double[] determinants = new double[numSamples];
-        double determinantSum = 0.0;
-        double determinantSumSQ = 0.0;
+        return matStatistics(m, numSamples, new RunningStatistics()).variance();
+    }
+
+    /*
+     * Samples the distribution defined by the determinant, accumulating its
+     * statistics in one pass without storing the samples.
+     *
+     * @param m           The matrix object that will be filled with random
+     *                    numbers.
+     * @param numSamples  The number of samples to take.
+     * @param stats       The accumulator to add the determinants to.
+     *
+     * @return The accumulator, for convenience.
+     */
+    public static RunningStatistics matStatistics(Matrix m, int numSamples, RunningStatistics stats) {
         for(int i = 0; i < numSamples; i++){
             m.random();
-            determinants[i] = m.determinant();
-            determinantSum += determinants[i];
-            determinantSumSQ += Math.pow(determinants[i],2);
+            stats.add(m.determinant());
         }
-        double var = (determinantSumSQ/numSamples)-Math.pow(determinantSum/numSamples,2);
-        return var;
+        return stats;
     }
     
+    /*
+     * Samples log|det| of random matrices. For large n the determinant
+     * itself leaves the range of a double, but its logarithm does not.
+     *
+     * @param m           The matrix object that will be filled with random
+     *                    numbers.
+     * @param numSamples  The number of samples to take.
+     * @param stats       The accumulator to add the values of log|det| to.
+     *
+     * @return The accumulator, for convenience.
+     */
+    public static RunningStatistics matLogStatistics(Matrix m, int numSamples, RunningStatistics stats) {
+        for(int i = 0; i < numSamples; i++){
+            m.random();
+            stats.add(m.logAbsDeterminant());
+        }
+        return stats;
+    }
+
     /**
      * This function should calculate the variances of matrices for matrices
-     * of size 2 <= n <= 50.
+     * of size 2 <= n <= 50. The sizes are sampled in parallel, with the
+     * samples for each size also split across all available processors.
+     * The general matrices are sampled a GeneralBatch at a time.
      */
     public static void main(String[] args) {
-        DeterminantDistribution p = new DeterminantDistribution();
         int normal = 15000;
         int tri = 150000;
-        for(int n = 2; n <= 50; n++){
-            GeneralMatrix x = new GeneralMatrix(n,n);
-            TriMatrix y = new TriMatrix(n);
-            double i = p.matVariance(x,normal);
-            double j = p.matVariance(y,tri);
-            System.out.println(n+"\t"+i+"\t"+j);
+        int threads = Runtime.getRuntime().availableProcessors();
+        try (DeterminantSampler sampler = new DeterminantSampler(threads, System.nanoTime())) {
+            double[] i = sampler.batchVariances(2, 50, normal);
+            double[] j = sampler.variances(TriMatrix::new, 2, 50, tri);
+            for(int n = 2; n <= 50; n++){
+                System.out.println(n+"\t"+i[n-2]+"\t"+j[n-2]);
+            }
         }
     }
 }
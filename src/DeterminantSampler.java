@@ -0,0 +1,293 @@
+/*
+ * This class runs the Monte Carlo sampling behind DeterminantDistribution
+ * in parallel. The samples for one matrix size are split into fixed-size
+ * chunks; each chunk fills its own matrix from its own random stream and
+ * accumulates partial statistics, which are then merged. Several matrix
+ * sizes can be sampled at once, sharing the same pool of threads.
+ *
+ * The random stream for each chunk is split off a root stream (see
+ * RandomFill) before any work starts, so for a given seed and chunk size
+ * the result does not depend on the number of threads or on how the chunks
+ * are scheduled.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.random.RandomGenerator.SplittableGenerator;
+
+public class DeterminantSampler implements AutoCloseable {
+    /**
+     * The default number of samples handled by one task.
+     */
+    public static final int DEFAULT_CHUNK = 1024;
+
+    /**
+     * The number of entries in each GeneralBatch used by batchStatistics.
+     */
+    static final int BATCH_DOUBLES = 1 << 16;
+
+    /**
+     * The pool the sampling tasks run on.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * The number of samples handled by one task.
+     */
+    private final int chunkSize;
+
+    /**
+     * The stream from which the streams for each run are split.
+     */
+    private final SplittableGenerator root;
+
+    /**
+     * Constructor function.
+     *
+     * @param threads  The number of worker threads.
+     * @param seed     The seed for the random streams.
+     */
+    public DeterminantSampler(int threads, long seed) {
+        this(threads, seed, DEFAULT_CHUNK);
+    }
+
+    /**
+     * Constructor function.
+     *
+     * @param threads    The number of worker threads.
+     * @param seed       The seed for the random streams.
+     * @param chunkSize  The number of samples handled by one task.
+     */
+    public DeterminantSampler(int threads, long seed, int chunkSize) {
+        if (threads < 1 || chunkSize < 1)
+            throw new MatrixException("Threads and chunk size must be positive");
+        this.pool = new ForkJoinPool(threads);
+        this.chunkSize = chunkSize;
+        this.root = RandomFill.create(seed);
+    }
+
+    /**
+     * Calculates the variance of the determinants of random matrices.
+     *
+     * @param factory     Creates a matrix of the required size and type.
+     *                    It is called once per chunk.
+     * @param numSamples  The number of samples to take.
+     * @return            The variance of the distribution.
+     */
+    public double variance(Supplier<? extends Matrix> factory, int numSamples) {
+        return statistics(factory, numSamples, new RunningStatistics()).variance();
+    }
+
+    /**
+     * Samples the determinants of random matrices and returns their
+     * statistics. Each chunk accumulates into an empty copy of template,
+     * and the chunks are merged into template itself.
+     *
+     * @param factory     Creates a matrix of the required size and type.
+     *                    It is called once per chunk.
+     * @param numSamples  The number of samples to take.
+     * @param template    The accumulator to merge the results into. Attach a
+     *                    Histogram to it to also keep the distribution.
+     * @return            template, holding the statistics.
+     */
+    public RunningStatistics statistics(Supplier<? extends Matrix> factory, int numSamples,
+                                        RunningStatistics template) {
+        return template.merge(pool.invoke(task(matrixSampler(factory), numSamples, template)));
+    }
+
+    /**
+     * Calculates the variance of the determinants of random matrices for
+     * every size from nMin to nMax, sampling all the sizes in parallel.
+     *
+     * @param factory     Creates a matrix of the given size.
+     * @param nMin        The smallest size.
+     * @param nMax        The largest size.
+     * @param numSamples  The number of samples to take for each size.
+     * @return            The variances, with the one for size n at index
+     *                    n - nMin.
+     */
+    public double[] variances(IntFunction<? extends Matrix> factory,
+                              int nMin, int nMax, int numSamples) {
+        return variances(statistics(factory, nMin, nMax, numSamples));
+    }
+
+    private static double[] variances(RunningStatistics[] stats) {
+        double[] result = new double[stats.length];
+        for (int i = 0; i < stats.length; i++)
+            result[i] = stats[i].variance();
+        return result;
+    }
+
+    /**
+     * Samples the determinants of random matrices for every size from nMin
+     * to nMax, sampling all the sizes in parallel.
+     *
+     * @param factory     Creates a matrix of the given size.
+     * @param nMin        The smallest size.
+     * @param nMax        The largest size.
+     * @param numSamples  The number of samples to take for each size.
+     * @return            The statistics, with those for size n at index
+     *                    n - nMin.
+     */
+    public RunningStatistics[] statistics(IntFunction<? extends Matrix> factory,
+                                          int nMin, int nMax, int numSamples) {
+        return sampleSizes(n -> matrixSampler(() -> factory.apply(n)), nMin, nMax, numSamples);
+    }
+
+    /**
+     * Runs the sampler for every size from nMin to nMax in parallel.
+     *
+     * @return The statistics, with those for size n at index n - nMin.
+     */
+    private RunningStatistics[] sampleSizes(IntFunction<Supplier<Sampler>> samplers,
+                                            int nMin, int nMax, int numSamples) {
+        List<ForkJoinTask<RunningStatistics>> tasks = new ArrayList<>();
+        RunningStatistics empty = new RunningStatistics();
+        for (int n = nMin; n <= nMax; n++)
+            tasks.add(pool.submit(task(samplers.apply(n), numSamples, empty)));
+        RunningStatistics[] result = new RunningStatistics[tasks.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = tasks.get(i).join();
+        return result;
+    }
+
+    /**
+     * Samples the determinants of random n x n GeneralMatrix objects with a
+     * GeneralBatch per chunk, which handles many matrices in each pass
+     * instead of one at a time: by cofactor expansion up to 4x4 and by
+     * factorising above that. The distribution is the same as that of
+     * statistics(() -> new GeneralMatrix(n, n), ...), though the samples
+     * themselves differ since the random numbers are used in another
+     * order.
+     *
+     * @param n           The dimension of the matrices.
+     * @param numSamples  The number of samples to take.
+     * @param template    The accumulator to merge the results into.
+     * @return            template, holding the statistics.
+     */
+    public RunningStatistics batchStatistics(int n, int numSamples, RunningStatistics template) {
+        return template.merge(pool.invoke(task(batchSampler(n), numSamples, template)));
+    }
+
+    /**
+     * Calculates the variance of the determinants of random n x n
+     * GeneralMatrix objects for every n from nMin to nMax, sampling with
+     * GeneralBatch as in batchStatistics and all the sizes in parallel.
+     *
+     * @param nMin        The smallest size.
+     * @param nMax        The largest size.
+     * @param numSamples  The number of samples to take for each size.
+     * @return            The variances, with the one for size n at index
+     *                    n - nMin.
+     */
+    public double[] batchVariances(int nMin, int nMax, int numSamples) {
+        return variances(sampleSizes(this::batchSampler, nMin, nMax, numSamples));
+    }
+
+    /**
+     * Shuts down the worker threads.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Adds count samples drawn from rng to stats. A new one is created for
+     * every chunk, so it may keep its own scratch space.
+     */
+    private interface Sampler {
+        void sample(SplittableGenerator rng, int count, RunningStatistics stats);
+    }
+
+    /**
+     * Returns a source of samplers which fill one matrix from factory and
+     * take its determinant for each sample.
+     */
+    private static Supplier<Sampler> matrixSampler(Supplier<? extends Matrix> factory) {
+        return () -> {
+            Matrix m = factory.get();
+            return (rng, count, stats) -> {
+                for (int s = 0; s < count; s++) {
+                    m.random(rng);
+                    stats.add(m.determinant());
+                }
+            };
+        };
+    }
+
+    /**
+     * Returns a source of samplers which fill a whole GeneralBatch of n x n
+     * matrices at a time. The batch is kept to about BATCH_DOUBLES entries
+     * so that it stays in cache.
+     */
+    private Supplier<Sampler> batchSampler(int n) {
+        int lanes = (int) Math.max(1, Math.min(chunkSize, BATCH_DOUBLES/((long) n*n)));
+        return () -> {
+            GeneralBatch batch = new GeneralBatch(n, lanes);
+            double[] det = new double[lanes];
+            return (rng, count, stats) -> {
+                for (int done = 0; done < count; done += lanes) {
+                    batch.random(rng);
+                    batch.determinants(det);
+                    for (int s = 0; s < Math.min(lanes, count - done); s++)
+                        stats.add(det[s]);
+                }
+            };
+        };
+    }
+
+    /**
+     * Creates the task for one run, splitting off a random stream for each
+     * of its chunks.
+     */
+    private Chunks task(Supplier<Sampler> sampler, int numSamples, RunningStatistics template) {
+        if (numSamples < 1)
+            throw new MatrixException("Number of samples must be positive");
+        int numChunks = (numSamples + chunkSize - 1)/chunkSize;
+        SplittableGenerator[] streams = new SplittableGenerator[numChunks];
+        synchronized (root) {
+            SplittableGenerator run = root.split();
+            for (int c = 0; c < numChunks; c++)
+                streams[c] = run.split();
+        }
+        return new Chunks(sampler, streams, template, numSamples, 0, numChunks);
+    }
+
+    /**
+     * A task which samples a range of chunks, splitting the range in half
+     * until it is a single chunk, and merges the partial statistics.
+     */
+    @SuppressWarnings("serial")
+    private class Chunks extends RecursiveTask<RunningStatistics> {
+        private final Supplier<Sampler> sampler;
+        private final SplittableGenerator[] streams;
+        private final RunningStatistics template;
+        private final int numSamples, lo, hi;
+
+        Chunks(Supplier<Sampler> sampler, SplittableGenerator[] streams,
+               RunningStatistics template, int numSamples, int lo, int hi) {
+            this.sampler = sampler; this.streams = streams; this.template = template;
+            this.numSamples = numSamples; this.lo = lo; this.hi = hi;
+        }
+
+        protected RunningStatistics compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                Chunks left = new Chunks(sampler, streams, template, numSamples, lo, mid);
+                left.fork();
+                RunningStatistics right =
+                    new Chunks(sampler, streams, template, numSamples, mid, hi).compute();
+                return left.join().merge(right);
+            }
+            RunningStatistics stats = template.emptyCopy();
+            int end = Math.min(numSamples, (lo + 1)*chunkSize);
+            sampler.get().sample(streams[lo], end - lo*chunkSize, stats);
+            return stats;
+        }
+    }
+}
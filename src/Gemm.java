@@ -0,0 +1,250 @@
+/*
+ * This class contains the dense matrix product used by GeneralMatrix and
+ * by the trailing update of the blocked LU factorisation. It computes
+ * C += alpha*A*B where A, B and C are stored as flat row-major arrays in
+ * the same way as GeneralMatrix, so it can write straight into the
+ * storage of a result matrix or into a block of a larger matrix.
+ *
+ * The product is organised in the usual way for cache-aware GEMM:
+ *
+ *  - B is split into KC x NC blocks which are packed into NR-wide column
+ *    slivers so that the micro-kernel reads them sequentially.
+ *  - A is split into MC x KC blocks, one per task, which are packed into
+ *    MR-tall row slivers.
+ *  - A register-blocked MR x NR micro-kernel multiplies one sliver of each,
+ *    keeping all MR*NR partial sums in local variables.
+ *
+ * The loop over the MC blocks of A is independent for each block of C, so
+ * that is the loop which is run in parallel.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+class Gemm {
+    /**
+     * The dimensions of the block of C computed by the micro-kernel.
+     */
+    static final int MR = 4, NR = 4;
+
+    /**
+     * The cache blocking parameters. A packed MC x KC block of A is about
+     * 200KB, which sits comfortably in L2, and a KC x NR sliver of B fits in
+     * L1. MC must be a multiple of MR and NC a multiple of NR.
+     */
+    static final int MC = 96, KC = 256, NC = 4096;
+
+    /**
+     * Products with fewer multiply-adds than this skip the packing and use a
+     * plain i-k-j loop, which is faster when everything fits in L1.
+     */
+    static final long SMALL = 32*32*32;
+
+    /**
+     * Buffers for the packed blocks of A, one for each thread.
+     */
+    private static final ThreadLocal<double[]> PACK_A =
+        ThreadLocal.withInitial(() -> new double[MC*KC]);
+
+    private Gemm() {}
+
+    /**
+     * Computes C += alpha*A*B where A is m x k, B is k x n and C is m x n.
+     *
+     * @param m     The number of rows of A and C.
+     * @param n     The number of columns of B and C.
+     * @param k     The number of columns of A and rows of B.
+     * @param alpha The scalar multiplying the product.
+     * @param a     The storage of A, with (i,p) at a[aOff + i*lda + p].
+     * @param b     The storage of B, with (p,j) at b[bOff + p*ldb + j].
+     * @param c     The storage of C, with (i,j) at c[cOff + i*ldc + j].
+     * @param pool  If not null, blocks of rows of C are computed in
+     *              parallel on this pool.
+     */
+    static void multiply(int m, int n, int k, double alpha,
+                         double[] a, int aOff, int lda,
+                         double[] b, int bOff, int ldb,
+                         double[] c, int cOff, int ldc, ForkJoinPool pool) {
+        if (m == 0 || n == 0 || k == 0)
+            return;
+        if ((long) m*n*k <= SMALL) {
+            naive(m, n, k, alpha, a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+            return;
+        }
+
+        double[] bp = new double[Math.min(KC, k)*roundUp(Math.min(NC, n), NR)];
+        int blocks = (m + MC - 1)/MC;
+
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+                packB(kc, nc, b, bOff + pc*ldb + jc, ldb, bp);
+                boolean split = pool != null && blocks > 1;
+                Panel panel = new Panel(m, kc, nc, alpha, a, aOff + pc, lda, bp,
+                                        c, cOff + jc, ldc, 0, blocks, split);
+                if (split)
+                    pool.invoke(panel);
+                else
+                    panel.compute();
+            }
+        }
+    }
+
+    /**
+     * The plain i-k-j product, used for small matrices.
+     */
+    static void naive(int m, int n, int k, double alpha,
+                      double[] a, int aOff, int lda,
+                      double[] b, int bOff, int ldb,
+                      double[] c, int cOff, int ldc) {
+        for (int i = 0; i < m; i++) {
+            int ri = cOff + i*ldc;
+            for (int p = 0; p < k; p++) {
+                double aip = alpha*a[aOff + i*lda + p];
+                if (aip == 0.0)
+                    continue;
+                Kernels.axpy(n, aip, b, bOff + p*ldb, c, ri);
+            }
+        }
+    }
+
+    /**
+     * A task which multiplies a range of MC-row blocks of A by one packed
+     * block of B, splitting the range in half until it is a single block.
+     */
+    @SuppressWarnings("serial")
+    private static class Panel extends RecursiveAction {
+        private final int m, kc, nc, aOff, lda, cOff, ldc, lo, hi;
+        private final double alpha;
+        private final double[] a, bp, c;
+        private final boolean split;
+
+        Panel(int m, int kc, int nc, double alpha, double[] a, int aOff, int lda,
+              double[] bp, double[] c, int cOff, int ldc, int lo, int hi, boolean split) {
+            this.m = m; this.kc = kc; this.nc = nc; this.alpha = alpha;
+            this.a = a; this.aOff = aOff; this.lda = lda; this.bp = bp;
+            this.c = c; this.cOff = cOff; this.ldc = ldc; this.lo = lo; this.hi = hi;
+            this.split = split;
+        }
+
+        protected void compute() {
+            if (split && hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Panel(m, kc, nc, alpha, a, aOff, lda, bp, c, cOff, ldc, lo, mid, true),
+                          new Panel(m, kc, nc, alpha, a, aOff, lda, bp, c, cOff, ldc, mid, hi, true));
+                return;
+            }
+            double[] ap = PACK_A.get();
+            for (int blk = lo; blk < hi; blk++) {
+                int ic = blk*MC;
+                int mc = Math.min(MC, m - ic);
+                packA(mc, kc, a, aOff + ic*lda, lda, ap);
+                macroKernel(mc, nc, kc, alpha, ap, bp, c, cOff + ic*ldc, ldc);
+            }
+        }
+    }
+
+    /**
+     * Multiplies a packed mc x kc block of A by a packed kc x nc block of B
+     * one MR x NR tile of C at a time.
+     */
+    private static void macroKernel(int mc, int nc, int kc, double alpha,
+                                    double[] ap, double[] bp,
+                                    double[] c, int cOff, int ldc) {
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int ir = 0; ir < mc; ir += MR) {
+                int mr = Math.min(MR, mc - ir);
+                microKernel(kc, alpha, ap, ir*kc, bp, jr*kc,
+                            c, cOff + ir*ldc + jr, ldc, mr, nr);
+            }
+        }
+    }
+
+    /**
+     * Computes a 4 x 4 tile of C from an MR-tall sliver of A and an NR-wide
+     * sliver of B. The sixteen partial sums are kept in local variables so
+     * that the JIT can hold them in registers. Only the top-left mr x nr
+     * corner is written back, which handles the edges of C.
+     */
+    private static void microKernel(int kc, double alpha,
+                                    double[] ap, int ai, double[] bp, int bi,
+                                    double[] c, int ci, int ldc, int mr, int nr) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+
+        for (int p = 0; p < kc; p++, ai += MR, bi += NR) {
+            double a0 = ap[ai], a1 = ap[ai+1], a2 = ap[ai+2], a3 = ap[ai+3];
+            double b0 = bp[bi], b1 = bp[bi+1], b2 = bp[bi+2], b3 = bp[bi+3];
+            c00 += a0*b0; c01 += a0*b1; c02 += a0*b2; c03 += a0*b3;
+            c10 += a1*b0; c11 += a1*b1; c12 += a1*b2; c13 += a1*b3;
+            c20 += a2*b0; c21 += a2*b1; c22 += a2*b2; c23 += a2*b3;
+            c30 += a3*b0; c31 += a3*b1; c32 += a3*b2; c33 += a3*b3;
+        }
+
+        if (mr == MR && nr == NR) {
+            c[ci]   += alpha*c00; c[ci+1] += alpha*c01; c[ci+2] += alpha*c02; c[ci+3] += alpha*c03;
+            ci += ldc;
+            c[ci]   += alpha*c10; c[ci+1] += alpha*c11; c[ci+2] += alpha*c12; c[ci+3] += alpha*c13;
+            ci += ldc;
+            c[ci]   += alpha*c20; c[ci+1] += alpha*c21; c[ci+2] += alpha*c22; c[ci+3] += alpha*c23;
+            ci += ldc;
+            c[ci]   += alpha*c30; c[ci+1] += alpha*c31; c[ci+2] += alpha*c32; c[ci+3] += alpha*c33;
+            return;
+        }
+
+        double[] t = {
+            c00, c01, c02, c03, c10, c11, c12, c13,
+            c20, c21, c22, c23, c30, c31, c32, c33
+        };
+        for (int i = 0; i < mr; i++)
+            for (int j = 0; j < nr; j++)
+                c[ci + i*ldc + j] += alpha*t[i*NR + j];
+    }
+
+    /**
+     * Packs an mc x kc block of A into MR-tall slivers. Within a sliver the
+     * MR entries of each column are adjacent. Rows past mc are padded with
+     * zeros.
+     */
+    private static void packA(int mc, int kc, double[] a, int aOff, int lda, double[] ap) {
+        int idx = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int mr = Math.min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                for (int r = 0; r < mr; r++)
+                    ap[idx + r] = a[aOff + (ir + r)*lda + p];
+                for (int r = mr; r < MR; r++)
+                    ap[idx + r] = 0.0;
+                idx += MR;
+            }
+        }
+    }
+
+    /**
+     * Packs a kc x nc block of B into NR-wide slivers. Within a sliver the
+     * NR entries of each row are adjacent. Columns past nc are padded with
+     * zeros.
+     */
+    private static void packB(int kc, int nc, double[] b, int bOff, int ldb, double[] bp) {
+        int idx = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int nr = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                int rp = bOff + p*ldb + jr;
+                for (int r = 0; r < nr; r++)
+                    bp[idx + r] = b[rp + r];
+                for (int r = nr; r < NR; r++)
+                    bp[idx + r] = 0.0;
+                idx += NR;
+            }
+        }
+    }
+
+    private static int roundUp(int x, int r) {
+        return (x + r - 1)/r*r;
+    }
+}
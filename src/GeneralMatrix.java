@@ -4,13 +4,50 @@
  */
 
 import java.util.Arrays;
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class GeneralMatrix extends Matrix {
     /**
-     * This instance variable stores the elements of the matrix.
+     * The algorithms available for computing the LU decomposition.
+     *
+     * CROUT is the Numerical Recipes routine with implicit pivoting. It is
+     * the default and works well while the matrix fits in cache.
+     *
+     * BLOCKED is a right-looking factorisation with partial pivoting which
+     * works on panels of columns and spends most of its time in a
+     * cache-friendly matrix product. Use it for large matrices.
+     *
+     * PARALLEL is the blocked algorithm with the trailing matrix update
+     * split across a ForkJoinPool. Matrices smaller than the parallel
+     * threshold are factorised serially with the blocked algorithm.
+     */
+    public enum Algorithm { CROUT, BLOCKED, PARALLEL }
+
+    /**
+     * This instance variable stores the elements of the matrix in a single
+     * contiguous array in row-major order. The (i,j)th entry lives at
+     * data[offset + i*stride + j].
+     */
+    private double[] data;
+
+    /**
+     * The index in data of the (0,0)th entry of the matrix. This is zero
+     * unless the matrix is a view onto part of a larger matrix.
+     */
+    private int offset;
+
+    /**
+     * The distance in data between the start of consecutive rows. This is
+     * n unless the matrix is a view onto part of a larger matrix.
      */
-    private double[][] data;
+    private int stride;
+
+    /**
+     * The workspace used by determinant() on each thread, so that repeated
+     * calls on same-sized matrices do not allocate. It is replaced when a
+     * matrix of a different size comes along.
+     */
+    private static final ThreadLocal<LUWorkspace> WORKSPACE = new ThreadLocal<>();
 
     /**
      * Constructor function: should initialise m and n through the Matrix
@@ -24,23 +61,120 @@ public class GeneralMatrix extends Matrix {
         if ( m < 1 || n < 1 ) {
             throw new MatrixException("Matrix dimensions must be positive");
         }
-        data = new double [m][n];
+        data = new double [m*n];
+        offset = 0;
+        stride = n;
     }
 
     /**
      * This is a copy constructor; it creates a
-     * copy of the matrix A.
+     * copy of the matrix A. The copy always has its own compact storage,
+     * even if A is a view.
      *
      * @param A  The matrix to create a copy of.
      */
     public GeneralMatrix(GeneralMatrix A) {
         super(A.m, A.n);
-        data = new double[A.m][A.n];
+        data = new double[A.m*A.n];
+        offset = 0;
+        stride = A.n;
         for(int i = 0; i < A.m; i++){
-            for(int j = 0; j < A.n; j++){
-                data[i][j] = A.getIJ(i,j);
-            }
+            System.arraycopy(A.data, A.offset + i*A.stride, data, i*n, n);
+        }
+    }
+
+    /**
+     * Constructor used to create views which share storage with another
+     * matrix.
+     *
+     * @param data    The backing array.
+     * @param offset  The index of the (0,0)th entry in data.
+     * @param stride  The distance in data between consecutive rows.
+     * @param m       The first (row) dimension of the view.
+     * @param n       The second (column) dimension of the view.
+     */
+    private GeneralMatrix(double[] data, int offset, int stride, int m, int n) {
+        super(m,n);
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    /**
+     * Returns a view onto the block of this matrix which starts at (row,col)
+     * and has the given dimensions. The view shares storage with this
+     * matrix, so changes made through either are visible in both.
+     *
+     * @param row   The first row of the block.
+     * @param col   The first column of the block.
+     * @param rows  The number of rows in the block.
+     * @param cols  The number of columns in the block.
+     * @return      A GeneralMatrix backed by the same storage.
+     */
+    public GeneralMatrix view(int row, int col, int rows, int cols) {
+        if (rows < 1 || cols < 1 || row < 0 || col < 0
+                || row + rows > m || col + cols > n) {
+            throw new MatrixException("View lies outside the matrix");
         }
+        return new GeneralMatrix(data, offset + row*stride + col, stride, rows, cols);
+    }
+
+    /**
+     * Sets the number of threads used by the PARALLEL algorithm. This
+     * defaults to the number of available processors.
+     *
+     * @param p  The number of worker threads.
+     */
+    public static void setParallelism(int p) {
+        DenseLU.setParallelism(p);
+    }
+
+    /**
+     * @return The number of threads used by the PARALLEL algorithm.
+     */
+    public static int getParallelism() {
+        return DenseLU.getParallelism();
+    }
+
+    /**
+     * Sets the size below which the PARALLEL algorithm falls back to the
+     * serial blocked algorithm, since for small matrices the cost of
+     * handing out work outweighs the gain.
+     *
+     * @param n  The smallest dimension factorised in parallel.
+     */
+    public static void setParallelThreshold(int n) {
+        DenseLU.setParallelThreshold(n);
+    }
+
+    /**
+     * @return The smallest dimension factorised by the PARALLEL algorithm
+     *         in parallel.
+     */
+    public static int getParallelThreshold() {
+        return DenseLU.getParallelThreshold();
+    }
+
+    /**
+     * @return The array holding the elements of this matrix. Used by the
+     *         kernels in other classes which work on the storage directly.
+     */
+    double[] array() {
+        return data;
+    }
+
+    /**
+     * @return The index in array() of the (0,0)th entry.
+     */
+    int offset() {
+        return offset;
+    }
+
+    /**
+     * @return The distance in array() between the start of consecutive rows.
+     */
+    int stride() {
+        return stride;
     }
 
     /**
@@ -54,15 +188,34 @@ public class GeneralMatrix extends Matrix {
         /*
         Needed this bit to throw an exception if the attempted value indexes were
         not in valid positions ie the indexes exceeded the size of the matrix.
+        Both indexes have to be checked since with flat storage an invalid
+        column would otherwise silently read from the next row.
         */
-        if(i >= 0 && i < m || j >= 0 && j < n){
-            return data[i][j];
+        if(i >= 0 && i < m && j >= 0 && j < n){
+            return data[offset + i*stride + j];
         }
         else{
             throw new MatrixException("Index Out of Bounds");
         }
     }
 
+    /**
+     * Copies len entries of row i, starting at column j0, into dst[off..]
+     * with a single array copy.
+     *
+     * @param i    The row.
+     * @param j0   The first column to copy.
+     * @param dst  The array to copy into.
+     * @param off  The index in dst of the first entry.
+     * @param len  The number of entries to copy.
+     */
+    public void getRow(int i, int j0, double[] dst, int off, int len) {
+        if(i < 0 || i >= m || j0 < 0 || len < 0 || j0 + len > n){
+            throw new MatrixException("Index Out of Bounds");
+        }
+        System.arraycopy(data, offset + i*stride + j0, dst, off, len);
+    }
+
     /**
      * Setter function: set the (i,j)th entry of the data array.
      *
@@ -71,8 +224,8 @@ public class GeneralMatrix extends Matrix {
      * @param val  The value to set the (i,j)th entry to.
      */
     public void setIJ(int i, int j, double val) {
-        if(i >= 0 && i < m || j >= 0 && j < n){
-            data[i][j] = val;
+        if(i >= 0 && i < m && j >= 0 && j < n){
+            data[offset + i*stride + j] = val;
         }
         else{
             throw new MatrixException("Index Out of Bounds");
@@ -86,20 +239,105 @@ public class GeneralMatrix extends Matrix {
      * with leading diagonal consisting of 1s and U is upper triangular.
      * Hence det(A) = det(U) = product of diagonal elements of U.
      *
+     * Matrices up to SmallLU.MAX_SIZE use the closed forms and fixed-size
+     * elimination in SmallLU instead of the general routines.
+     *
      * @return The determinant of the matrix.
      */
     public double determinant() {
-        double[] x = new double[1];
-        GeneralMatrix decomposed = this.decomp(x);
+        if (n == m && n <= SmallLU.MAX_SIZE)
+            return SmallLU.determinant(data, offset, stride, n);
+        return determinant(Algorithm.CROUT);
+    }
+
+    /**
+     * Return the determinant of this matrix, computing the LU decomposition
+     * with the chosen algorithm.
+     *
+     * @param alg  The factorisation algorithm to use.
+     * @return     The determinant of the matrix.
+     */
+    public double determinant(Algorithm alg) {
+        return determinant(alg, workspace());
+    }
+
+    /**
+     * Return the determinant of this matrix using the scratch space in ws,
+     * so that no memory is allocated. The matrix itself is not changed.
+     *
+     * @param alg  The factorisation algorithm to use.
+     * @param ws   A workspace for matrices of this size.
+     * @return     The determinant of the matrix.
+     */
+    public double determinant(Algorithm alg, LUWorkspace ws) {
+        double sign = factorInto(alg, ws);
         double det = 1.0;
-        for(int i = 0; i < m; i++){
-            det *= decomposed.getIJ(i,i);
+        for(int i = 0; i < n; i++){
+            det *= ws.a[i*n+i];
+        }
+        return det*sign;
+    }
+
+    /**
+     * Return the determinant of this matrix as mantissa * 2^exponent. The
+     * pivots are multiplied with renormalisation after each one, so the
+     * result is exact in sign and log|det| even when the plain product
+     * would underflow to 0 or overflow to Infinity.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        return scaledDeterminant(Algorithm.CROUT, workspace());
+    }
+
+    /**
+     * Return the determinant of this matrix in scaled form, computing the
+     * LU decomposition with the chosen algorithm in the scratch space ws.
+     *
+     * @param alg  The factorisation algorithm to use.
+     * @param ws   A workspace for matrices of this size.
+     * @return     The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant(Algorithm alg, LUWorkspace ws) {
+        double sign = factorInto(alg, ws);
+        return ScaledDeterminant.product(ws.a, 0, n+1, n, sign);
+    }
+
+    /**
+     * Returns this thread's workspace, replacing it if it is for a different
+     * size of matrix.
+     */
+    private LUWorkspace workspace() {
+        LUWorkspace ws = WORKSPACE.get();
+        if (ws == null || ws.n != n) {
+            if (n != m)
+                throw new MatrixException("Matrix is not square");
+            ws = new LUWorkspace(n);
+            WORKSPACE.set(ws);
+        }
+        return ws;
+    }
+
+    /**
+     * Copies this matrix into ws and factorises it there.
+     *
+     * @return 1 or -1, the sign due to the row interchanges.
+     */
+    private double factorInto(Algorithm alg, LUWorkspace ws) {
+        if (n != m)
+            throw new MatrixException("Matrix is not square");
+        if (ws.n != n)
+            throw new MatrixException("Workspace is the wrong size");
+        for(int i = 0; i < n; i++){
+            System.arraycopy(data, offset + i*stride, ws.a, i*n, n);
         }
-        return det*x[0];
+        return factor(ws.a, 0, n, n, alg, ws.piv, ws.vv, ws.col);
     }
 
     /**
-     * Add the matrix to another matrix A.
+     * Add the matrix to another matrix A. A TriMatrix, BandMatrix or
+     * SparseMatrix only adds its band or its non-zeros to a copy of this
+     * matrix.
      *
      * @param A  The Matrix to add to this matrix.
      * @return   The sum of this matrix with the matrix A.
@@ -108,18 +346,47 @@ public class GeneralMatrix extends Matrix {
         if(A.m != this.m || A.n != this.n){
             throw new MatrixException("The matricies are of different dimensions so cannot be summed.");
         }
-        Matrix result = new GeneralMatrix(this.m, this.n);
+        Matrix sum = A.addTo(this);
+        if(sum != null){
+            return sum;
+        }
+        GeneralMatrix result = new GeneralMatrix(this.m, this.n);
         for(int i = 0; i < this.m; i++){
+            int r = i*result.stride, t = offset + i*stride;
             for(int j = 0; j < this.n; j++){
-                result.setIJ(i,j,(this.getIJ(i,j) + A.getIJ(i,j)));
+                result.data[r+j] = data[t+j] + A.getIJ(i,j);
             }
         }
         return result;
     }
 
+    Matrix addTo(GeneralMatrix A) {
+        GeneralMatrix result = new GeneralMatrix(this.m, this.n);
+        for(int i = 0; i < this.m; i++){
+            Kernels.add(n, A.data, A.offset + i*A.stride, data, offset + i*stride,
+                        result.data, i*result.stride);
+        }
+        return result;
+    }
+
+    Matrix addTo(TriMatrix A) {
+        return A.addTo(this);
+    }
+
+    Matrix addTo(BandMatrix A) {
+        return A.addTo(this);
+    }
+
+    Matrix addTo(SparseMatrix A) {
+        return A.addDense(this);
+    }
+
     /**
      * Multiply the matrix by another matrix A. This is a _left_ product,
      * i.e. if this matrix is called B then it calculates the product BA.
+     * A TriMatrix or BandMatrix only combines the few columns of this
+     * matrix which meet its band, and a SparseMatrix the rows of this
+     * matrix picked out by its non-zeros.
      *
      * @param A  The Matrix to multiply by.
      * @return   The product of this matrix with the matrix A.
@@ -128,23 +395,54 @@ public class GeneralMatrix extends Matrix {
         if(this.n != A.m){
             throw new MatrixException("The matrices are of incompatible dimensions for multiplication.");
         }
-        double [][] values = new double[m][A.n];
+        Matrix product = A.multiplyLeftBy(this);
+        if(product != null){
+            return product;
+        }
+        GeneralMatrix result = new GeneralMatrix(this.m, A.n);
+        double[] c = result.data;
+        int cs = result.stride;
         for(int i = 0; i < this.m; i++){
+            int t = offset + i*stride;
             for(int j = 0; j < A.n; j++){
+                double sum = 0.0;
                 for(int k = 0; k < n; k++){
-                    values[i][j] += this.getIJ(i,k) * A.getIJ(k,j);
+                    sum += data[t+k] * A.getIJ(k,j);
                 }
+                c[i*cs+j] = sum;
             }
         }
-        Matrix result = new GeneralMatrix(this.m, A.n);
-        for(int x = 0; x < this.m; x++){
-            for(int y = 0; y < A.n; y++){
-                result.setIJ(x,y,(values[x][y]));
-            }
+        return result;
+    }
+
+    Matrix multiplyLeftBy(GeneralMatrix A) {
+        GeneralMatrix result = new GeneralMatrix(A.m, this.n);
+        double[] c = result.data;
+        int cs = result.stride;
+        if(A.m == A.n && A.n == n && n >= 2 && n <= SmallLU.MAX_MULTIPLY_SIZE){
+            SmallLU.multiply(n, A.data, A.offset, A.stride, data, offset, stride, c, 0, cs);
+        }
+        else{
+            int size = Math.max(A.m, Math.max(A.n, this.n));
+            Gemm.multiply(A.m, this.n, A.n, 1.0,
+                          A.data, A.offset, A.stride, data, offset, stride,
+                          c, 0, cs, size < DenseLU.getParallelThreshold() ? null : DenseLU.pool());
         }
         return result;
     }
 
+    Matrix multiplyLeftBy(TriMatrix A) {
+        return A.multiplyDense(this);
+    }
+
+    Matrix multiplyLeftBy(BandMatrix A) {
+        return A.multiplyDense(this);
+    }
+
+    Matrix multiplyLeftBy(SparseMatrix A) {
+        return A.multiplyDense(this);
+    }
+
     /**
      * Multiply the matrix by a scalar.
      *
@@ -152,11 +450,9 @@ public class GeneralMatrix extends Matrix {
      * @return   The product of this matrix with the scalar a.
      */
     public Matrix multiply(double a) {
-        Matrix result = new GeneralMatrix(this.m, this.n);
+        GeneralMatrix result = new GeneralMatrix(this.m, this.n);
         for(int i = 0; i < this.m; i++){
-            for(int j = 0; j < this.n; j++){
-                result.setIJ(i,j,(getIJ(i,j)*a));
-            }
+            Kernels.scale(n, a, data, offset + i*stride, result.data, i*result.stride);
         }
         return result;
     }
@@ -164,14 +460,26 @@ public class GeneralMatrix extends Matrix {
 
     /**
      * Populates the matrix with random numbers which are uniformly
-     * distributed between 0 and 1.
+     * distributed between 0 and 1, drawn from the current thread's
+     * generator (see RandomFill).
      */
     public void random() {
-        Random rand = new Random();
+        random(RandomFill.current());
+    }
+
+    /**
+     * Populates the matrix with random numbers which are uniformly
+     * distributed between 0 and 1, drawn from the given generator.
+     *
+     * @param rng  The source of random numbers.
+     */
+    public void random(RandomGenerator rng) {
+        if(stride == n){
+            RandomFill.fill(data, offset, m*n, rng);
+            return;
+        }
         for(int i = 0; i <this.m; i++){
-            for(int j = 0; j < this.n; j++){
-                this.setIJ(i, j, rand.nextDouble());
-            }
+            RandomFill.fill(data, offset + i*stride, n, rng);
         }
     }
 
@@ -202,64 +510,129 @@ public class GeneralMatrix extends Matrix {
      * @return   The LU decomposition of the matrix.
      */
     public GeneralMatrix decomp(double[] d) {
+        return decomp(d, Algorithm.CROUT);
+    }
+
+    /**
+     * Returns the LU decomposition of this matrix, packed in the same way as
+     * decomp(double[]), using the chosen algorithm. The algorithms may pick
+     * different pivots, so the packed factors need not be identical, but
+     * the product of the diagonal times d[0] is the determinant in each
+     * case.
+     *
+     * @param d    An array of length 1. On exit, the value contained in here
+     *             will either be 1 or -1, which will be used to calculate the
+     *             correct sign on the determinant.
+     * @param alg  The factorisation algorithm to use.
+     * @return     The LU decomposition of the matrix.
+     */
+    public GeneralMatrix decomp(double[] d, Algorithm alg) {
         if (n != m)
             throw new MatrixException("Matrix is not square");
         if (d.length != 1)
             throw new MatrixException("d should be of length 1");
 
-        int           i, imax = -10, j, k;
-        double        big, dum, sum, temp;
-        double[]      vv   = new double[n];
-        GeneralMatrix a    = new GeneralMatrix(this);
-
-        d[0] = 1.0;
-
-        for (i = 1; i <= n; i++) {
-            big = 0.0;
-            for (j = 1; j <= n; j++)
-                if ((temp = Math.abs(a.data[i-1][j-1])) > big)
-                    big = temp;
-            if (big == 0.0)
-                throw new MatrixException("Matrix is singular");
-            vv[i-1] = 1.0/big;
+        GeneralMatrix a = new GeneralMatrix(this);
+        d[0] = factor(a.data, 0, n, n, alg, null, new double[n], new double[n]);
+        return a;
+    }
+
+    /**
+     * Overwrites this matrix with its LU decomposition, packed in the same
+     * way as decomp(double[]). No copy of the matrix is made, and this also
+     * works on views, factorising the block in place within the larger
+     * matrix.
+     *
+     * @param d    An array of length 1. On exit, the value contained in here
+     *             will either be 1 or -1, which will be used to calculate the
+     *             correct sign on the determinant.
+     * @param alg  The factorisation algorithm to use.
+     * @return     This matrix, now holding its LU decomposition.
+     */
+    public GeneralMatrix decompInPlace(double[] d, Algorithm alg) {
+        if (n != m)
+            throw new MatrixException("Matrix is not square");
+        if (d.length != 1)
+            throw new MatrixException("d should be of length 1");
+
+        d[0] = factor(data, offset, stride, n, alg, null, new double[n], new double[n]);
+        return this;
+    }
+
+    /**
+     * Overwrites this matrix with its LU decomposition using the scratch
+     * space in ws, so that no memory is allocated. The row interchanges are
+     * left in the workspace.
+     *
+     * @param alg  The factorisation algorithm to use.
+     * @param ws   A workspace for matrices of this size.
+     * @return     1 or -1, the sign due to the row interchanges.
+     */
+    public double decompInPlace(Algorithm alg, LUWorkspace ws) {
+        if (n != m)
+            throw new MatrixException("Matrix is not square");
+        if (ws.n != n)
+            throw new MatrixException("Workspace is the wrong size");
+        return factor(data, offset, stride, n, alg, ws.piv, ws.vv, ws.col);
+    }
+
+    /**
+     * Returns the LU decomposition of this matrix as an LUDecomposition,
+     * which keeps the row interchanges as well as the packed factors so
+     * that they can be reused to solve systems or find the inverse.
+     * Matrices up to SmallLU.MAX_SIZE are factorised in place by the
+     * fixed-size elimination in SmallLU.
+     *
+     * @return The LU decomposition of the matrix.
+     */
+    public LUDecomposition lu() {
+        if (n == m && n <= SmallLU.MAX_SIZE) {
+            GeneralMatrix a = new GeneralMatrix(this);
+            int[] piv = new int[n];
+            double sign = SmallLU.factor(a.data, 0, n, n, piv);
+            return new LUDecomposition(a, piv, sign);
         }
+        return lu(Algorithm.CROUT);
+    }
 
-        for (j = 1; j <= n; j++) {
-            for (i = 1; i < j; i++) {
-                sum = a.data[i-1][j-1];
-                for (k = 1; k < i; k++)
-                    sum -= a.data[i-1][k-1]*a.data[k-1][j-1];
-                a.data[i-1][j-1] = sum;
-            }
-            big = 0.0;
-            for (i = j; i <= n; i++) {
-                sum = a.data[i-1][j-1];
-                for (k = 1; k < j; k++)
-                    sum -= a.data[i-1][k-1]*a.data[k-1][j-1];
-                a.data[i-1][j-1] = sum;
-                if ((dum = vv[i-1]*Math.abs(sum)) >= big) {
-                    big  = dum;
-                    imax = i;
-                }
-            }
-            if (j != imax) {
-                for (k = 1; k <= n; k++) {
-                    dum = a.data[imax-1][k-1];
-                    a.data[imax-1][k-1] = a.data[j-1][k-1];
-                    a.data[j-1][k-1] = dum;
-                }
-                d[0] = -d[0];
-                vv[imax-1] = vv[j-1];
-            }
-            if (a.data[j-1][j-1] == 0.0)
-                a.data[j-1][j-1] = 1.0e-20;
-            if (j != n) {
-                dum = 1.0/a.data[j-1][j-1];
-                for (i = j+1; i <= n; i++)
-                    a.data[i-1][j-1] *= dum;
-            }
+    /**
+     * Returns the LU decomposition of this matrix as an LUDecomposition,
+     * computed with the chosen algorithm.
+     *
+     * @param alg  The factorisation algorithm to use.
+     * @return     The LU decomposition of the matrix.
+     */
+    public LUDecomposition lu(Algorithm alg) {
+        if (n != m)
+            throw new MatrixException("Matrix is not square");
+        GeneralMatrix a = new GeneralMatrix(this);
+        int[] piv = new int[n];
+        double sign = factor(a.data, 0, n, n, alg, piv, new double[n], new double[n]);
+        return new LUDecomposition(a, piv, sign);
+    }
+
+    /**
+     * Overwrites the n x n matrix stored at a[off + i*lda + j] with its
+     * packed LU decomposition.
+     *
+     * @param alg  The factorisation algorithm to use.
+     * @param piv  If not null, on exit row j was swapped with row piv[j]
+     *             at step j.
+     * @param vv   Scratch space of length n for Crout's method.
+     * @param col  Scratch space of length n for Crout's method.
+     * @return     1 or -1, the sign due to the row interchanges.
+     */
+    private static double factor(double[] a, int off, int lda, int n, Algorithm alg,
+                                 int[] piv, double[] vv, double[] col) {
+        switch (alg) {
+            case BLOCKED:
+                return DenseLU.blocked(a, off, lda, n, DenseLU.BLOCK_SIZE, piv, null);
+            case PARALLEL:
+                return DenseLU.blocked(a, off, lda, n, DenseLU.BLOCK_SIZE, piv,
+                        n < DenseLU.getParallelThreshold() ? null : DenseLU.pool());
+            default:
+                return DenseLU.crout(a, off, lda, n, vv, col, piv);
         }
-        return a;
     }
 
     /*
@@ -0,0 +1,147 @@
+/*
+ * This class is a fixed-bin histogram which can be filled from a stream of
+ * values in O(1) memory, merged with other histograms with the same bins,
+ * and used to estimate quantiles of the distribution. Values outside the
+ * range of the bins are counted separately.
+ */
+
+public class Histogram {
+    /**
+     * The lower and upper limits of the binned range.
+     */
+    private final double lo, hi;
+
+    /**
+     * The counts in each bin. Bin k covers [lo + k*width, lo + (k+1)*width).
+     */
+    private final long[] counts;
+
+    /**
+     * The width of each bin.
+     */
+    private final double width;
+
+    /**
+     * The number of values below lo and at or above hi.
+     */
+    private long underflow, overflow;
+
+    /**
+     * The total number of values added, including those out of range.
+     */
+    private long total;
+
+    /**
+     * Constructor function.
+     *
+     * @param lo    The lower limit of the binned range.
+     * @param hi    The upper limit of the binned range.
+     * @param bins  The number of equal-width bins.
+     */
+    public Histogram(double lo, double hi, int bins) {
+        if (!(hi > lo) || bins < 1)
+            throw new MatrixException("Histogram needs hi > lo and at least one bin");
+        this.lo = lo;
+        this.hi = hi;
+        this.counts = new long[bins];
+        this.width = (hi - lo)/bins;
+    }
+
+    /**
+     * @return A new empty histogram with the same bins as this one.
+     */
+    public Histogram emptyCopy() {
+        return new Histogram(lo, hi, counts.length);
+    }
+
+    /**
+     * Adds a value. NaN values are ignored.
+     *
+     * @param x  The value to add.
+     */
+    public void add(double x) {
+        if (Double.isNaN(x))
+            return;
+        total++;
+        if (x < lo) {
+            underflow++;
+        } else if (x >= hi) {
+            overflow++;
+        } else {
+            int k = (int) ((x - lo)/width);
+            counts[Math.min(k, counts.length - 1)]++;
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram with the same bins to this one.
+     *
+     * @param o  The histogram to merge in. It is not modified.
+     * @return   This histogram.
+     */
+    public Histogram merge(Histogram o) {
+        if (o.lo != lo || o.hi != hi || o.counts.length != counts.length)
+            throw new MatrixException("Histograms have different bins");
+        for (int k = 0; k < counts.length; k++)
+            counts[k] += o.counts[k];
+        underflow += o.underflow;
+        overflow  += o.overflow;
+        total     += o.total;
+        return this;
+    }
+
+    /**
+     * Estimates the p-quantile by interpolating linearly within the bin
+     * that contains it. Quantiles which fall among the out of range values
+     * are reported as lo or hi.
+     *
+     * @param p  The probability, between 0 and 1.
+     * @return   The estimated quantile.
+     */
+    public double quantile(double p) {
+        if (p < 0.0 || p > 1.0)
+            throw new MatrixException("Quantile must be between 0 and 1");
+        if (total == 0)
+            return Double.NaN;
+        double target = p*total;
+        double seen = underflow;
+        if (target <= seen)
+            return lo;
+        for (int k = 0; k < counts.length; k++) {
+            if (seen + counts[k] >= target) {
+                double frac = counts[k] == 0 ? 0.0 : (target - seen)/counts[k];
+                return lo + (k + frac)*width;
+            }
+            seen += counts[k];
+        }
+        return hi;
+    }
+
+    /**
+     * @return A copy of the bin counts.
+     */
+    public long[] counts() {
+        return counts.clone();
+    }
+
+    /**
+     * @return The number of values below the binned range.
+     */
+    public long underflow() {
+        return underflow;
+    }
+
+    /**
+     * @return The number of values above the binned range.
+     */
+    public long overflow() {
+        return overflow;
+    }
+
+    /**
+     * @return The total number of values added.
+     */
+    public long total() {
+        return total;
+    }
+}
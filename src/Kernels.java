@@ -0,0 +1,66 @@
+/*
+ * This class contains the vector kernels used in the inner loops of the
+ * matrix routines: dot products, AXPY row updates, scaling and addition.
+ *
+ * Each kernel is a single counted loop over contiguous array elements with
+ * the offsets hoisted out, which is the shape HotSpot's auto-vectoriser
+ * turns into SIMD instructions (SSE, AVX2 or AVX-512, whatever the machine
+ * has). The dot product is a reduction, which the JIT will not reorder on
+ * its own, so it is split into four independent partial sums instead.
+ */
+
+class Kernels {
+    private Kernels() {}
+
+    /**
+     * Returns the dot product of x[xOff..xOff+len) and y[yOff..yOff+len).
+     */
+    static double dot(double[] x, int xOff, double[] y, int yOff, int len) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i <= len - 4; i += 4) {
+            s0 += x[xOff+i]   * y[yOff+i];
+            s1 += x[xOff+i+1] * y[yOff+i+1];
+            s2 += x[xOff+i+2] * y[yOff+i+2];
+            s3 += x[xOff+i+3] * y[yOff+i+3];
+        }
+        for (; i < len; i++)
+            s0 += x[xOff+i] * y[yOff+i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Computes y += alpha*x over len elements.
+     */
+    static void axpy(int len, double alpha, double[] x, int xOff, double[] y, int yOff) {
+        for (int i = 0; i < len; i++)
+            y[yOff+i] += alpha * x[xOff+i];
+    }
+
+    /**
+     * Computes y = alpha*x over len elements.
+     */
+    static void scale(int len, double alpha, double[] x, int xOff, double[] y, int yOff) {
+        for (int i = 0; i < len; i++)
+            y[yOff+i] = alpha * x[xOff+i];
+    }
+
+    /**
+     * Computes z = x + y over len elements.
+     */
+    static void add(int len, double[] x, int xOff, double[] y, int yOff, double[] z, int zOff) {
+        for (int i = 0; i < len; i++)
+            z[zOff+i] = x[xOff+i] + y[yOff+i];
+    }
+
+    /**
+     * Swaps x[xOff..xOff+len) with y[yOff..yOff+len).
+     */
+    static void swap(int len, double[] x, int xOff, double[] y, int yOff) {
+        for (int i = 0; i < len; i++) {
+            double t = x[xOff+i];
+            x[xOff+i] = y[yOff+i];
+            y[yOff+i] = t;
+        }
+    }
+}
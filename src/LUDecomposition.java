@@ -0,0 +1,214 @@
+/*
+ * This class holds the result of an LU decomposition of a square
+ * GeneralMatrix so that it can be reused. Factorising costs O(n^3), while
+ * every operation here costs O(n^2) per right-hand side, so systems with
+ * many right-hand sides should factorise once and solve many times.
+ */
+
+public class LUDecomposition {
+    /**
+     * The packed factors, laid out as described in GeneralMatrix.decomp.
+     */
+    private final GeneralMatrix lu;
+
+    /**
+     * The row interchanges: at step j row j was swapped with row piv[j].
+     */
+    private final int[] piv;
+
+    /**
+     * 1 or -1 depending on whether the number of row interchanges was even
+     * or odd.
+     */
+    private final double sign;
+
+    /**
+     * The dimension of the matrix.
+     */
+    private final int n;
+
+    /**
+     * Constructor function. This is package-private since decompositions
+     * are created by GeneralMatrix.lu().
+     *
+     * @param lu    The packed factors in compact storage.
+     * @param piv   The row interchanges.
+     * @param sign  The sign due to the row interchanges.
+     */
+    LUDecomposition(GeneralMatrix lu, int[] piv, double sign) {
+        this.lu = lu;
+        this.piv = piv;
+        this.sign = sign;
+        this.n = lu.n;
+    }
+
+    /**
+     * @return A copy of the packed L and U factors.
+     */
+    public GeneralMatrix getPacked() {
+        return new GeneralMatrix(lu);
+    }
+
+    /**
+     * @return A copy of the row interchanges: at step j row j was swapped
+     *         with row piv[j].
+     */
+    public int[] getPivots() {
+        return piv.clone();
+    }
+
+    /**
+     * @return 1 or -1 depending on whether the number of row interchanges
+     *         was even or odd.
+     */
+    public double getSign() {
+        return sign;
+    }
+
+    /**
+     * Return the determinant of the matrix, which is the product of the
+     * diagonal of U times the sign of the permutation.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        double[] a = lu.array();
+        double det = sign;
+        for (int i = 0; i < n; i++)
+            det *= a[i*n+i];
+        return det;
+    }
+
+    /**
+     * Return the determinant of the matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        return ScaledDeterminant.product(lu.array(), 0, n+1, n, sign);
+    }
+
+    /**
+     * Return the natural logarithm of the absolute value of the
+     * determinant. Summing logarithms avoids the overflow and underflow
+     * which the plain product suffers from for large matrices.
+     *
+     * @return log|det(A)|.
+     */
+    public double logDeterminant() {
+        double[] a = lu.array();
+        double sum = 0.0;
+        for (int i = 0; i < n; i++)
+            sum += Math.log(Math.abs(a[i*n+i]));
+        return sum;
+    }
+
+    /**
+     * Return the sign of the determinant, to go with logDeterminant().
+     *
+     * @return 1 or -1.
+     */
+    public double determinantSign() {
+        double[] a = lu.array();
+        double s = sign;
+        for (int i = 0; i < n; i++)
+            if (a[i*n+i] < 0.0)
+                s = -s;
+        return s;
+    }
+
+    /**
+     * Solves Ax = b.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        if (b.length != n)
+            throw new MatrixException("Right-hand side has the wrong length");
+        double[] a = lu.array();
+        double[] x = b.clone();
+
+        for (int j = 0; j < n; j++) {
+            int p = piv[j];
+            if (p != j) {
+                double t = x[p];
+                x[p] = x[j];
+                x[j] = t;
+            }
+        }
+        // Forward substitution with the unit lower triangle.
+        for (int i = 1; i < n; i++)
+            x[i] -= Kernels.dot(a, i*n, x, 0, i);
+        // Back substitution with the upper triangle.
+        for (int i = n-1; i >= 0; i--)
+            x[i] = (x[i] - Kernels.dot(a, i*n+i+1, x, i+1, n-i-1))/a[i*n+i];
+        return x;
+    }
+
+    /**
+     * Solves AX = B for several right-hand sides at once. The substitutions
+     * are done a whole row of X at a time, so the inner loops run along
+     * contiguous rows.
+     *
+     * @param B  The right-hand sides, one per column. It is not modified.
+     * @return   The solution X.
+     */
+    public GeneralMatrix solve(Matrix B) {
+        if (B.m != n)
+            throw new MatrixException("Right-hand side has the wrong number of rows");
+        GeneralMatrix X;
+        if (B instanceof GeneralMatrix) {
+            X = new GeneralMatrix((GeneralMatrix) B);
+        } else {
+            X = new GeneralMatrix(B.m, B.n);
+            for (int i = 0; i < B.m; i++)
+                for (int j = 0; j < B.n; j++)
+                    X.setIJ(i, j, B.getIJ(i, j));
+        }
+        double[] a = lu.array(), x = X.array();
+        int k = B.n;
+
+        for (int j = 0; j < n; j++)
+            if (piv[j] != j)
+                Kernels.swap(k, x, j*k, x, piv[j]*k);
+        for (int i = 1; i < n; i++)
+            for (int p = 0; p < i; p++)
+                Kernels.axpy(k, -a[i*n+p], x, p*k, x, i*k);
+        for (int i = n-1; i >= 0; i--) {
+            for (int p = i+1; p < n; p++)
+                Kernels.axpy(k, -a[i*n+p], x, p*k, x, i*k);
+            Kernels.scale(k, 1.0/a[i*n+i], x, i*k, x, i*k);
+        }
+        return X;
+    }
+
+    /**
+     * Return the inverse of the matrix by solving against the identity.
+     *
+     * @return The inverse of the matrix.
+     */
+    public GeneralMatrix inverse() {
+        GeneralMatrix I = new GeneralMatrix(n, n);
+        for (int i = 0; i < n; i++)
+            I.setIJ(i, i, 1.0);
+        return solve(I);
+    }
+
+    /*
+     * Main function with some manual tests.
+     */
+    public static void main(String[] args) {
+        GeneralMatrix a = new GeneralMatrix(3, 3);
+        a.setIJ(0, 0, 2); a.setIJ(0, 1, 1); a.setIJ(0, 2, 1);
+        a.setIJ(1, 0, 4); a.setIJ(1, 1, -6); a.setIJ(1, 2, 0);
+        a.setIJ(2, 0, -2); a.setIJ(2, 1, 7); a.setIJ(2, 2, 2);
+        LUDecomposition lu = a.lu();
+        System.out.println("Determinant of A is: " + lu.determinant() + "\n");
+        double[] x = lu.solve(new double[] {5, -2, 9});
+        System.out.println("Solution of Ax = (5,-2,9): " + x[0] + " " + x[1] + " " + x[2] + "\n");
+        System.out.println("Inverse of A: \n" + lu.inverse());
+        System.out.println("A times its inverse: \n" + a.multiply(lu.inverse()));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * This class holds the scratch space needed to factorise an n x n
+ * GeneralMatrix: a compact copy of the matrix and the work vectors used by
+ * the factorisation routines. Passing the same workspace to repeated
+ * calls of GeneralMatrix.determinant means that no memory is allocated
+ * once the workspace exists, which matters in sampling loops where the
+ * same-sized determinant is computed many thousands of times.
+ *
+ * A workspace must not be shared between threads while in use.
+ */
+
+public class LUWorkspace {
+    /**
+     * The dimension of the matrices this workspace can factorise.
+     */
+    final int n;
+
+    /**
+     * Holds the compact copy of the matrix, which is overwritten by its
+     * factors.
+     */
+    final double[] a;
+
+    /**
+     * The implicit scaling factors and column buffer used by Crout's
+     * method.
+     */
+    final double[] vv, col;
+
+    /**
+     * The row interchanges from the last factorisation.
+     */
+    final int[] piv;
+
+    /**
+     * Constructor function: allocates the scratch space for n x n matrices.
+     *
+     * @param n  The dimension of the matrices to factorise.
+     */
+    public LUWorkspace(int n) {
+        if (n < 1)
+            throw new MatrixException("Matrix dimensions must be positive");
+        this.n   = n;
+        this.a   = new double[n*n];
+        this.vv  = new double[n];
+        this.col = new double[n];
+        this.piv = new int[n];
+    }
+
+    /**
+     * @return The dimension of the matrices this workspace can factorise.
+     */
+    public int size() {
+        return n;
+    }
+}
@@ -2,6 +2,8 @@
  * This class provides the template for a Matrix object.
  */
 
+import java.util.random.RandomGenerator;
+
 public abstract class Matrix {
     /**
      * Two variables to describe the dimensions of the Matrix.
@@ -20,20 +22,14 @@ public abstract class Matrix {
     }
 
     /**
-     * Returns a String representation of the Matrix using the getIJ getter
-     * function.
+     * Returns a String representation of the Matrix, with the entries to
+     * three decimals, separated by tabs, and a newline after each row. See
+     * MatrixFormatter for other formats and for streaming large matrices.
      *
      * @return A String representation of the Matrix.
      */
     public String toString() {
-        String s = "";
-        for(int i = 0; i < m; i++){
-            for(int j = 0; j <n; j++){
-                s += String.format( "%.3f", getIJ(i, j))+"/t";
-            }
-            s += "/n";
-        }
-        return s;
+        return MatrixFormatter.text().format(this);
     }
 
     /**
@@ -54,6 +50,22 @@ public abstract class Matrix {
      */
     public abstract void setIJ(int i, int j, double val);
 
+    /**
+     * Copies len entries of row i, starting at column j0, into dst[off..].
+     * This default reads them one at a time with getIJ; matrices which
+     * store their rows contiguously override it with a bulk copy.
+     *
+     * @param i    The row.
+     * @param j0   The first column to copy.
+     * @param dst  The array to copy into.
+     * @param off  The index in dst of the first entry.
+     * @param len  The number of entries to copy.
+     */
+    public void getRow(int i, int j0, double[] dst, int off, int len) {
+        for (int j = 0; j < len; j++)
+            dst[off+j] = getIJ(i, j0+j);
+    }
+
     /**
      * Return the determinant of this matrix.
      *
@@ -61,6 +73,37 @@ public abstract class Matrix {
      */
     public abstract double determinant();
 
+    /**
+     * Return the determinant of this matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow. Subclasses which compute the
+     * determinant as a product of pivots override this to renormalise as
+     * they go; this default only rescales determinant().
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        return ScaledDeterminant.of(determinant());
+    }
+
+    /**
+     * Return the natural logarithm of the absolute value of the
+     * determinant, computed without overflow or underflow.
+     *
+     * @return log|det(A)|, or -Infinity if the determinant is zero.
+     */
+    public double logAbsDeterminant() {
+        return scaledDeterminant().logAbs();
+    }
+
+    /**
+     * Return the sign of the determinant, to go with logAbsDeterminant().
+     *
+     * @return 1, -1 or 0.
+     */
+    public double determinantSign() {
+        return scaledDeterminant().sign();
+    }
+
     /**
      * Add the matrix to another matrix A.
      *
@@ -86,9 +129,79 @@ public abstract class Matrix {
      */
     public abstract Matrix multiply(double a);
 
+    /*
+     * The second half of the double dispatch behind add() and multiply().
+     * GeneralMatrix, TriMatrix, BandMatrix and SparseMatrix first call
+     * A.addTo(this) or A.multiplyLeftBy(this), which the compiler resolves
+     * on the type of this and the JIT on the type of A, so the pair of
+     * types picks the method. Each pair with a structured result overrides one of these;
+     * the rest return null and the caller falls back to its general
+     * code. The dimensions have already been checked.
+     */
+
+    /**
+     * @param A  A matrix of the same size.
+     * @return   A + this, or null if there is no special case.
+     */
+    Matrix addTo(GeneralMatrix A) {
+        return null;
+    }
+
+    Matrix addTo(TriMatrix A) {
+        return null;
+    }
+
+    Matrix addTo(BandMatrix A) {
+        return null;
+    }
+
+    Matrix addTo(SparseMatrix A) {
+        return null;
+    }
+
+    /**
+     * @param A  A matrix with as many columns as this has rows.
+     * @return   The product A*this, or null if there is no special case.
+     */
+    Matrix multiplyLeftBy(GeneralMatrix A) {
+        return null;
+    }
+
+    Matrix multiplyLeftBy(TriMatrix A) {
+        return null;
+    }
+
+    Matrix multiplyLeftBy(BandMatrix A) {
+        return null;
+    }
+
+    Matrix multiplyLeftBy(SparseMatrix A) {
+        return null;
+    }
+
+    /**
+     * Starts a lazy expression from this matrix. Its add and multiply
+     * methods build up an expression which is only computed, in as few
+     * passes as possible, when it is evaluated. See MatrixExpr.
+     *
+     * @return An expression which evaluates to this matrix.
+     */
+    public MatrixExpr lazy() {
+        return MatrixExpr.of(this);
+    }
+
     /**
      * Fills the matrix with random numbers which are uniformly distributed
      * between 0 and 1.
      */
     public abstract void random();
+
+    /**
+     * Fills the matrix with random numbers which are uniformly distributed
+     * between 0 and 1, drawn from the given generator. This lets callers
+     * that sample in parallel give each thread its own random stream.
+     *
+     * @param rng  The source of random numbers.
+     */
+    public abstract void random(RandomGenerator rng);
 }
@@ -0,0 +1,424 @@
+/*
+ * This class describes a matrix expression which is evaluated lazily. The
+ * add and multiply methods of Matrix compute their result straight away, so
+ * a chain such as A.add(B).multiply(2).add(C) allocates and writes a full
+ * matrix for every step. Building the same chain on expressions only
+ * records it,
+ *
+ *   GeneralMatrix D = A.lazy().add(B).multiply(2).add(C).evaluate();
+ *
+ * and evaluation then does the least work it can:
+ *
+ *  - The tree is flattened into a sum of scaled terms, each either a matrix
+ *    or a product of two expressions, so every scalar becomes the
+ *    coefficient of a term and the same matrix appearing twice is read once.
+ *  - All of the matrix terms are summed in a single pass over the
+ *    destination, one row at a time, so each row is written to memory once
+ *    however long the chain. TriMatrix terms only touch their three
+ *    diagonals.
+ *  - Each product is accumulated directly into the destination by Gemm
+ *    with its coefficient, and any scalars on its operands, folded into the
+ *    alpha of the product, so 2*(3A)*B costs a single product.
+ *  - evaluateInto() writes into a matrix supplied by the caller, which can
+ *    be reused from one evaluation to the next.
+ *
+ * Operands of products which are not themselves GeneralMatrix leaves are
+ * evaluated into temporaries first. Products with a TriMatrix or other
+ * structured operand use that matrix's own multiply, which knows its
+ * structure, and the result joins the sum.
+ *
+ * Expressions refer to their matrices rather than copying them, so they
+ * see any change made to them before evaluation. The destination may be
+ * one of the matrices in the expression.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public abstract class MatrixExpr {
+    /**
+     * The dimensions of the matrix the expression evaluates to.
+     */
+    final int m, n;
+
+    private MatrixExpr(int m, int n) {
+        this.m = m;
+        this.n = n;
+    }
+
+    /**
+     * @param A  A matrix.
+     * @return   An expression which evaluates to A.
+     */
+    public static MatrixExpr of(Matrix A) {
+        return new Leaf(A);
+    }
+
+    /**
+     * @return The row dimension of the result.
+     */
+    public int rows() {
+        return m;
+    }
+
+    /**
+     * @return The column dimension of the result.
+     */
+    public int columns() {
+        return n;
+    }
+
+    /**
+     * @param B  The expression to add to this one.
+     * @return   An expression for the sum.
+     */
+    public MatrixExpr add(MatrixExpr B) {
+        if (B.m != m || B.n != n)
+            throw new MatrixException("The matricies are of different dimensions so cannot be summed.");
+        return new Sum(this, B);
+    }
+
+    /**
+     * @param B  The matrix to add to this expression.
+     * @return   An expression for the sum.
+     */
+    public MatrixExpr add(Matrix B) {
+        return add(of(B));
+    }
+
+    /**
+     * @param a  The scalar to multiply by.
+     * @return   An expression for the product of this one with a.
+     */
+    public MatrixExpr multiply(double a) {
+        return new Scaled(this, a);
+    }
+
+    /**
+     * A left product, as in Matrix.multiply: if this expression is B then
+     * the result is BA.
+     *
+     * @param A  The expression to multiply by.
+     * @return   An expression for the product.
+     */
+    public MatrixExpr multiply(MatrixExpr A) {
+        if (n != A.m)
+            throw new MatrixException("The matrices are of incompatible dimensions for multiplication.");
+        return new Product(this, A);
+    }
+
+    /**
+     * @param A  The matrix to multiply by, on the right.
+     * @return   An expression for the product.
+     */
+    public MatrixExpr multiply(Matrix A) {
+        return multiply(of(A));
+    }
+
+    /**
+     * Evaluates the expression into a new matrix.
+     *
+     * @return The value of the expression.
+     */
+    public GeneralMatrix evaluate() {
+        GeneralMatrix dest = new GeneralMatrix(m, n);
+        evaluate(dest, true);
+        return dest;
+    }
+
+    /**
+     * Evaluates the expression into dest, overwriting it.
+     *
+     * @param dest  An m x n matrix to hold the result.
+     * @return      dest.
+     */
+    public GeneralMatrix evaluateInto(GeneralMatrix dest) {
+        if (dest.m != m || dest.n != n)
+            throw new MatrixException("Destination is the wrong size");
+        evaluate(dest, false);
+        return dest;
+    }
+
+    /**
+     * Appends the terms of this expression, each multiplied by coef, to
+     * terms.
+     */
+    abstract void collect(double coef, List<Term> terms);
+
+    /**
+     * One term of the flattened expression: coef*leaf, or coef*left*right.
+     */
+    private static final class Term {
+        double coef;
+        final Matrix leaf;
+        final MatrixExpr left, right;
+
+        Term(double coef, Matrix leaf, MatrixExpr left, MatrixExpr right) {
+            this.coef = coef;
+            this.leaf = leaf;
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    private static final class Leaf extends MatrixExpr {
+        final Matrix A;
+
+        Leaf(Matrix A) {
+            super(A.m, A.n);
+            this.A = A;
+        }
+
+        void collect(double coef, List<Term> terms) {
+            for (Term t : terms)
+                if (t.leaf == A) {
+                    t.coef += coef;
+                    return;
+                }
+            terms.add(new Term(coef, A, null, null));
+        }
+    }
+
+    private static final class Sum extends MatrixExpr {
+        final MatrixExpr left, right;
+
+        Sum(MatrixExpr left, MatrixExpr right) {
+            super(left.m, left.n);
+            this.left = left;
+            this.right = right;
+        }
+
+        void collect(double coef, List<Term> terms) {
+            left.collect(coef, terms);
+            right.collect(coef, terms);
+        }
+    }
+
+    private static final class Scaled extends MatrixExpr {
+        final MatrixExpr inner;
+        final double alpha;
+
+        Scaled(MatrixExpr inner, double alpha) {
+            super(inner.m, inner.n);
+            this.inner = inner;
+            this.alpha = alpha;
+        }
+
+        void collect(double coef, List<Term> terms) {
+            inner.collect(coef*alpha, terms);
+        }
+    }
+
+    private static final class Product extends MatrixExpr {
+        final MatrixExpr left, right;
+
+        Product(MatrixExpr left, MatrixExpr right) {
+            super(left.m, right.n);
+            this.left = left;
+            this.right = right;
+        }
+
+        void collect(double coef, List<Term> terms) {
+            terms.add(new Term(coef, null, left, right));
+        }
+    }
+
+    /**
+     * An operand of a product reduced to coef*A, with A a matrix.
+     */
+    private static final class Operand {
+        final double coef;
+        final Matrix A;
+
+        Operand(double coef, Matrix A) {
+            this.coef = coef;
+            this.A = A;
+        }
+    }
+
+    /**
+     * Reduces an operand of a product to a scalar times a matrix, which is
+     * the operand itself if it is a scaled leaf and otherwise a temporary
+     * holding its value.
+     */
+    private static Operand operand(MatrixExpr e) {
+        List<Term> terms = new ArrayList<>();
+        e.collect(1.0, terms);
+        if (terms.size() == 1 && terms.get(0).leaf != null)
+            return new Operand(terms.get(0).coef, terms.get(0).leaf);
+        GeneralMatrix t = new GeneralMatrix(e.m, e.n);
+        evaluate(terms, t, true);
+        return new Operand(1.0, t);
+    }
+
+    private void evaluate(GeneralMatrix dest, boolean fresh) {
+        List<Term> terms = new ArrayList<>();
+        collect(1.0, terms);
+        evaluate(terms, dest, fresh);
+    }
+
+    /**
+     * Evaluates the sum of terms into dest. fresh says dest was just
+     * allocated, so it is zero and shares storage with nothing.
+     */
+    private static void evaluate(List<Term> terms, GeneralMatrix dest, boolean fresh) {
+        // Reduce the products to scaled GeneralMatrix operands, or evaluate
+        // those with structured operands into matrices which join the sum.
+        List<Term> leaves = new ArrayList<>();
+        List<Operand[]> products = new ArrayList<>();
+        List<Double> alphas = new ArrayList<>();
+        for (Term t : terms) {
+            if (t.leaf != null) {
+                if (t.coef != 0.0)
+                    leaves.add(t);
+                continue;
+            }
+            Operand a = operand(t.left), b = operand(t.right);
+            double alpha = t.coef*a.coef*b.coef;
+            if (alpha == 0.0)
+                continue;
+            if (a.A instanceof GeneralMatrix && b.A instanceof GeneralMatrix) {
+                products.add(new Operand[] {a, b});
+                alphas.add(alpha);
+            } else {
+                leaves.add(new Term(alpha, a.A.multiply(b.A), null, null));
+            }
+        }
+
+        // The row-by-row sum reads each leaf at the position it writes, so
+        // dest may be one of the leaves, but not another view of the same
+        // storage, and the products read their operands after the sum has
+        // overwritten dest.
+        if (!fresh) {
+            boolean alias = false;
+            for (Term t : leaves)
+                alias |= t.leaf != dest && overlaps(t.leaf, dest);
+            for (Operand[] p : products)
+                alias |= overlaps(p[0].A, dest) || overlaps(p[1].A, dest);
+            if (alias) {
+                GeneralMatrix t = new GeneralMatrix(dest.m, dest.n);
+                evaluate(leaves, products, alphas, t, true);
+                for (int i = 0; i < dest.m; i++)
+                    System.arraycopy(t.array(), i*t.stride(), dest.array(),
+                                     dest.offset() + i*dest.stride(), dest.n);
+                return;
+            }
+        }
+        evaluate(leaves, products, alphas, dest, fresh);
+    }
+
+    private static boolean overlaps(Matrix A, GeneralMatrix dest) {
+        return A instanceof GeneralMatrix && ((GeneralMatrix) A).array() == dest.array();
+    }
+
+    private static void evaluate(List<Term> leaves, List<Operand[]> products, List<Double> alphas,
+                                 GeneralMatrix dest, boolean fresh) {
+        double[] c = dest.array();
+        int co = dest.offset(), cs = dest.stride(), n = dest.n;
+
+        // Sum the leaves a row at a time. The dense ones go first so that
+        // the first of them can overwrite the row, and if dest is one of
+        // them it goes first of all, to be read before it is overwritten.
+        List<Term> dense = new ArrayList<>(), other = new ArrayList<>();
+        for (Term t : leaves) {
+            if (t.leaf == dest)
+                dense.add(0, t);
+            else
+                (t.leaf instanceof GeneralMatrix ? dense : other).add(t);
+        }
+        if (dense.isEmpty() && !fresh) {
+            for (int i = 0; i < dest.m; i++)
+                Arrays.fill(c, co + i*cs, co + i*cs + n, 0.0);
+        }
+        for (int i = 0; i < dest.m; i++) {
+            int r = co + i*cs;
+            for (int k = 0; k < dense.size(); k++) {
+                GeneralMatrix A = (GeneralMatrix) dense.get(k).leaf;
+                double coef = dense.get(k).coef;
+                int a = A.offset() + i*A.stride();
+                if (k == 0)
+                    Kernels.scale(n, coef, A.array(), a, c, r);
+                else
+                    Kernels.axpy(n, coef, A.array(), a, c, r);
+            }
+            for (Term t : other) {
+                if (t.leaf instanceof TriMatrix) {
+                    TriMatrix T = (TriMatrix) t.leaf;
+                    c[r+i] += t.coef*T.diagonal()[i];
+                    if (i > 0)
+                        c[r+i-1] += t.coef*T.lowerDiagonal()[i-1];
+                    if (i < n-1)
+                        c[r+i+1] += t.coef*T.upperDiagonal()[i];
+                } else {
+                    for (int j = 0; j < n; j++)
+                        c[r+j] += t.coef*t.leaf.getIJ(i, j);
+                }
+            }
+        }
+
+        // Accumulate the products, C += alpha*A*B.
+        for (int p = 0; p < products.size(); p++) {
+            GeneralMatrix A = (GeneralMatrix) products.get(p)[0].A;
+            GeneralMatrix B = (GeneralMatrix) products.get(p)[1].A;
+            int size = Math.max(A.m, Math.max(A.n, B.n));
+            Gemm.multiply(A.m, B.n, A.n, alphas.get(p),
+                          A.array(), A.offset(), A.stride(), B.array(), B.offset(), B.stride(),
+                          c, co, cs, size < DenseLU.getParallelThreshold() ? null : DenseLU.pool());
+        }
+    }
+
+    /*
+     * Main function with some manual tests: compares lazy and eager
+     * evaluation of the same chain and times both.
+     */
+    public static void main(String[] args) {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        GeneralMatrix A = new GeneralMatrix(N, N), B = new GeneralMatrix(N, N);
+        GeneralMatrix C = new GeneralMatrix(N, N);
+        TriMatrix T = new TriMatrix(N);
+        A.random(RandomFill.create(1));
+        B.random(RandomFill.create(2));
+        C.random(RandomFill.create(3));
+        T.random(RandomFill.create(4));
+
+        long t0 = System.nanoTime();
+        Matrix eager = A.add(B).multiply(2).add(C).add(T).multiply(0.5);
+        long t1 = System.nanoTime();
+        GeneralMatrix dest = new GeneralMatrix(N, N);
+        A.lazy().add(B).multiply(2).add(C).add(T).multiply(0.5).evaluateInto(dest);
+        long t2 = System.nanoTime();
+        double err = 0.0;
+        for (int i = 0; i < N; i++)
+            for (int j = 0; j < N; j++)
+                err = Math.max(err, Math.abs(eager.getIJ(i, j) - dest.getIJ(i, j)));
+        System.out.printf("sum chain:     eager %7.2f ms  lazy %7.2f ms  max difference %.1e%n",
+                          (t1-t0)/1e6, (t2-t1)/1e6, err);
+
+        int M = Math.min(N, 400);
+        GeneralMatrix a = new GeneralMatrix(M, M), b = new GeneralMatrix(M, M);
+        a.random(RandomFill.create(5));
+        b.random(RandomFill.create(6));
+        t0 = System.nanoTime();
+        eager = a.multiply(3).multiply(b.multiply(2)).add(a);
+        t1 = System.nanoTime();
+        GeneralMatrix lazy = a.lazy().multiply(3).multiply(b.lazy().multiply(2)).add(a).evaluate();
+        t2 = System.nanoTime();
+        err = 0.0;
+        for (int i = 0; i < M; i++)
+            for (int j = 0; j < M; j++)
+                err = Math.max(err, Math.abs(eager.getIJ(i, j) - lazy.getIJ(i, j)));
+        System.out.printf("product chain: eager %7.2f ms  lazy %7.2f ms  max difference %.1e%n",
+                          (t1-t0)/1e6, (t2-t1)/1e6, err);
+
+        // The destination may appear in the expression.
+        GeneralMatrix x = new GeneralMatrix(a);
+        x.lazy().multiply(b).add(x).evaluateInto(x);
+        Matrix y = a.multiply(b).add(a);
+        err = 0.0;
+        for (int i = 0; i < M; i++)
+            for (int j = 0; j < M; j++)
+                err = Math.max(err, Math.abs(x.getIJ(i, j) - y.getIJ(i, j)));
+        System.out.printf("in place:      max difference %.1e%n", err);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * This class writes matrices as text. The output is streamed to any
+ * Appendable, such as a StringBuilder, a Writer or System.out, one row at a
+ * time through a reused buffer, so formatting is linear in the number of
+ * entries and a large matrix is never held as one String.
+ *
+ * Numbers are formatted with a fixed number of decimals, as "%.3f" would,
+ * but without going through java.util.Formatter, which parses the format
+ * and allocates for every entry; values too large for the fast path fall
+ * back to it. A negative precision writes the shortest decimal which reads
+ * back as the same double, which is what CSV and TSV files meant for other
+ * programs should use. Output never depends on the default locale.
+ *
+ * A preview limits the rows and columns written: the first and last few
+ * of each are written, with "..." in place of the rest and the dimensions
+ * on a last line.
+ *
+ * Formatters are immutable, so the with methods return new ones:
+ *
+ *   MatrixFormatter.text().withPrecision(6).withPreview(10, 10).format(A, System.out);
+ *   MatrixFormatter.csv().format(A, Path.of("a.csv"));
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+public class MatrixFormatter {
+    /**
+     * The largest precision handled by the fast path.
+     */
+    private static final int MAX_FAST_PRECISION = 15;
+
+    private static final double[] POW10 = new double[MAX_FAST_PRECISION + 1];
+
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = 10.0*POW10[i-1];
+    }
+
+    /**
+     * The text between entries of a row, the number of decimals (negative
+     * for the shortest exact form) and the largest number of rows and
+     * columns written, 0 for no limit.
+     */
+    private final String separator;
+    private final int precision;
+    private final int maxRows, maxCols;
+
+    private MatrixFormatter(String separator, int precision, int maxRows, int maxCols) {
+        this.separator = separator;
+        this.precision = precision;
+        this.maxRows = maxRows;
+        this.maxCols = maxCols;
+    }
+
+    /**
+     * @return A formatter for reading by people: tab-separated with three
+     *         decimals. This is what Matrix.toString() uses.
+     */
+    public static MatrixFormatter text() {
+        return new MatrixFormatter("\t", 3, 0, 0);
+    }
+
+    /**
+     * @return A formatter for comma-separated values which read back as
+     *         exactly the same doubles.
+     */
+    public static MatrixFormatter csv() {
+        return new MatrixFormatter(",", -1, 0, 0);
+    }
+
+    /**
+     * @return A formatter for tab-separated values which read back as
+     *         exactly the same doubles.
+     */
+    public static MatrixFormatter tsv() {
+        return new MatrixFormatter("\t", -1, 0, 0);
+    }
+
+    /**
+     * @param precision  The number of decimals, or a negative number for the
+     *                   shortest form which reads back exactly.
+     * @return           A formatter like this one with the given precision.
+     */
+    public MatrixFormatter withPrecision(int precision) {
+        return new MatrixFormatter(separator, precision, maxRows, maxCols);
+    }
+
+    /**
+     * @param separator  The text to write between the entries of a row.
+     * @return           A formatter like this one with the given separator.
+     */
+    public MatrixFormatter withSeparator(String separator) {
+        return new MatrixFormatter(separator, precision, maxRows, maxCols);
+    }
+
+    /**
+     * @param rows  The largest number of rows to write, at least 2, or 0
+     *              for no limit.
+     * @param cols  The largest number of columns to write, at least 2, or 0
+     *              for no limit.
+     * @return      A formatter like this one which truncates larger
+     *              matrices.
+     */
+    public MatrixFormatter withPreview(int rows, int cols) {
+        if (rows < 0 || cols < 0 || rows == 1 || cols == 1)
+            throw new MatrixException("Preview limits must be 0 or at least 2");
+        return new MatrixFormatter(separator, precision, rows, cols);
+    }
+
+    /**
+     * Formats a matrix into a String.
+     *
+     * @param A  The matrix to format.
+     * @return   The formatted matrix, each row ending in a newline.
+     */
+    public String format(Matrix A) {
+        int rows = maxRows == 0 ? A.m : Math.min(A.m, maxRows);
+        int cols = maxCols == 0 ? A.n : Math.min(A.n, maxCols);
+        StringBuilder sb = new StringBuilder((int) Math.min(1 << 24, (long) rows*cols*8 + rows));
+        try {
+            format(A, sb);
+        } catch (IOException e) {
+            // A StringBuilder does not throw.
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes a matrix to a file in UTF-8, replacing it if it exists.
+     *
+     * @param A     The matrix to format.
+     * @param path  The file to write.
+     */
+    public void format(Matrix A, Path path) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            format(A, w);
+        }
+    }
+
+    /**
+     * Streams a matrix to out a row at a time.
+     *
+     * @param A    The matrix to format.
+     * @param out  Where to write it, e.g. a Writer or StringBuilder.
+     */
+    public void format(Matrix A, Appendable out) throws IOException {
+        // With a preview, the first rows and columns take the extra one.
+        boolean cutRows = maxRows != 0 && A.m > maxRows;
+        boolean cutCols = maxCols != 0 && A.n > maxCols;
+        int headRows = cutRows ? (maxRows + 1)/2 : A.m, tailRows = cutRows ? maxRows/2 : 0;
+        int headCols = cutCols ? (maxCols + 1)/2 : A.n, tailCols = cutCols ? maxCols/2 : 0;
+
+        double[] row = new double[A.n];
+        StringBuilder sb = new StringBuilder(64 + 16*(headCols + tailCols));
+        for (int i = 0; i < A.m; i++) {
+            if (i == headRows && cutRows) {
+                out.append("...\n");
+                i = A.m - tailRows;
+            }
+            A.getRow(i, 0, row, 0, headCols);
+            if (cutCols)
+                A.getRow(i, A.n - tailCols, row, A.n - tailCols, tailCols);
+            sb.setLength(0);
+            for (int j = 0; j < headCols; j++) {
+                if (j > 0)
+                    sb.append(separator);
+                appendNumber(sb, row[j]);
+            }
+            if (cutCols) {
+                sb.append(separator).append("...");
+                for (int j = A.n - tailCols; j < A.n; j++) {
+                    sb.append(separator);
+                    appendNumber(sb, row[j]);
+                }
+            }
+            sb.append('\n');
+            out.append(sb);
+        }
+        if (cutRows || cutCols)
+            out.append("[").append(Integer.toString(A.m)).append(" x ")
+               .append(Integer.toString(A.n)).append("]\n");
+    }
+
+    /**
+     * Appends x with the formatter's precision. The fast path rounds
+     * |x|*10^precision to the nearest integer and writes its digits, which
+     * agrees with "%.Nf" except possibly on exact ties.
+     */
+    void appendNumber(StringBuilder sb, double x) {
+        if (precision < 0 || Double.isNaN(x) || Double.isInfinite(x)) {
+            sb.append(x);
+            return;
+        }
+        double scaled = Math.abs(x)*(precision <= MAX_FAST_PRECISION ? POW10[precision] : 0.0);
+        if (precision > MAX_FAST_PRECISION || scaled >= 1e9) {
+            sb.append(String.format(Locale.ROOT, "%." + precision + "f", x));
+            return;
+        }
+        long r = Math.round(scaled), p = (long) POW10[precision];
+        if (Double.doubleToRawLongBits(x) < 0)
+            sb.append('-');
+        sb.append(r/p);
+        if (precision > 0) {
+            sb.append('.');
+            long f = r % p;
+            for (long d = p/10; d > 0; d /= 10)
+                sb.append((char) ('0' + f/d % 10));
+        }
+    }
+
+    /*
+     * Main function with some manual tests.
+     */
+    public static void main(String[] args) throws IOException {
+        GeneralMatrix a = new GeneralMatrix(3, 4);
+        a.random(RandomFill.create(1));
+        a.setIJ(0, 0, -1234.56789);
+        System.out.print(text().format(a));
+        System.out.print(csv().format(a));
+        System.out.print(text().withPrecision(1).withPreview(2, 2).format(a));
+
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        GeneralMatrix b = new GeneralMatrix(N, N);
+        b.random(RandomFill.create(2));
+        long t0 = System.nanoTime();
+        String s = b.toString();
+        long t1 = System.nanoTime();
+        System.out.println(N + "x" + N + ": " + s.length() + " characters in "
+                           + (t1-t0)/1e6 + " ms");
+    }
+}
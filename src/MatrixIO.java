@@ -0,0 +1,531 @@
+/*
+ * This class reads and writes matrices in a compact binary format, so that
+ * large matrices can be passed between programs without formatting and
+ * parsing text. Files are read and written through FileChannel.map, so the
+ * data moves between the page cache and the matrix storage with bulk
+ * copies, and a dense file can be mapped as an OffHeapMatrix whose entries
+ * are the pages of the file, with no copy at all.
+ *
+ * A file starts with a 64-byte header, all little-endian:
+ *
+ *   0   8 bytes  the magic string "LUMATRIX"
+ *   8   int      the format version, VERSION
+ *   12  int      the type: 0 dense, 1 tri-diagonal, 2 band, 3 sparse
+ *   16  int      the layout of a dense matrix: 0 row-major, 1 column-major
+ *   20  int      reserved, 0
+ *   24  long     the number of rows m
+ *   32  long     the number of columns n
+ *   40  long     the lower bandwidth of a band matrix, or the number of
+ *                non-zeros of a sparse matrix, otherwise 0
+ *   48  long     the upper bandwidth of a band matrix, otherwise 0
+ *   56  long     reserved, 0
+ *
+ * followed by the entries as little-endian doubles:
+ *
+ *   dense        the m*n entries in the order given by the layout
+ *   tri-diagonal the diagonal (n), then the lower and upper diagonals (n-1)
+ *   band         for each row i, the kl+ku+1 entries in columns i-kl to
+ *                i+ku, with zeros for columns outside the matrix
+ *   sparse       the m+1 row pointers and nnz column indices of the CSR
+ *                form as ints, padded to a multiple of 8 bytes, then the
+ *                nnz values
+ *
+ * Since the data starts 64 bytes in, rows of a mapped dense matrix keep the
+ * alignment of the row length. Files are always written row-major; the
+ * column-major layout is accepted on reading so that files written by
+ * column-major programs can be loaded.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MatrixIO {
+    /**
+     * The kinds of matrix a file can hold.
+     */
+    public enum Type {
+        DENSE, TRIDIAGONAL, BAND, SPARSE
+    }
+
+    /**
+     * The layouts of a dense matrix.
+     */
+    static final int ROW_MAJOR = 0, COLUMN_MAJOR = 1;
+
+    /**
+     * The current format version.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The size of the header, which is also where the data starts.
+     */
+    public static final int HEADER_BYTES = 64;
+
+    private static final byte[] MAGIC = "LUMATRIX".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The largest region mapped at once.
+     */
+    private static final long MAX_MAP_BYTES = 1L << 30;
+
+    private MatrixIO() {}
+
+    /**
+     * The fields of a header.
+     */
+    private static final class Header {
+        Type type;
+        int layout;
+        int m, n;
+        long p1, p2;
+    }
+
+    /**
+     * Writes a matrix to a file, replacing it if it exists. TriMatrix,
+     * BandMatrix and SparseMatrix are written in their own layouts and every
+     * other matrix as dense.
+     *
+     * @param A     The matrix to write.
+     * @param path  The file to write to.
+     */
+    public static void write(Matrix A, Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            Header h = new Header();
+            h.m = A.m;
+            h.n = A.n;
+            h.layout = ROW_MAJOR;
+            long pos = HEADER_BYTES;
+            if (A instanceof TriMatrix) {
+                TriMatrix T = (TriMatrix) A;
+                h.type = Type.TRIDIAGONAL;
+                pos = putDoubles(ch, pos, T.diagonal(), 0, A.n);
+                pos = putDoubles(ch, pos, T.lowerDiagonal(), 0, A.n-1);
+                putDoubles(ch, pos, T.upperDiagonal(), 0, A.n-1);
+            } else if (A instanceof BandMatrix) {
+                BandMatrix B = (BandMatrix) A;
+                h.type = Type.BAND;
+                h.p1 = B.kl;
+                h.p2 = B.ku;
+                putRecords(ch, pos, B.ab, 0, B.ldab, A.n, B.kl + B.ku + 1);
+            } else if (A instanceof SparseMatrix) {
+                SparseMatrix S = (SparseMatrix) A;
+                int nnz = S.nonZeros();
+                h.type = Type.SPARSE;
+                h.p1 = nnz;
+                pos = putInts(ch, pos, S.rowPtr, A.m+1);
+                pos = putInts(ch, pos, S.colIdx, nnz);
+                putDoubles(ch, (pos + 7) & -8, S.values, 0, nnz);
+            } else {
+                h.type = Type.DENSE;
+                writeDense(ch, A);
+            }
+            writeHeader(ch, h);
+        }
+    }
+
+    /**
+     * Writes the rows of a dense matrix, mapping up to MAX_MAP_BYTES of the
+     * file at a time.
+     */
+    private static void writeDense(FileChannel ch, Matrix A) throws IOException {
+        long rowBytes = 8L*A.n;
+        int rowsPerMap = (int) Math.max(1, Math.min(A.m, MAX_MAP_BYTES/rowBytes));
+        double[] row = new double[A.n];
+        for (int r0 = 0; r0 < A.m; r0 += rowsPerMap) {
+            int rows = Math.min(rowsPerMap, A.m - r0);
+            DoubleBuffer db = map(ch, FileChannel.MapMode.READ_WRITE,
+                                  HEADER_BYTES + r0*rowBytes, rows*rowBytes).asDoubleBuffer();
+            for (int i = r0; i < r0 + rows; i++) {
+                A.getRow(i, 0, row, 0, A.n);
+                db.put(row, 0, A.n);
+            }
+        }
+    }
+
+    /**
+     * Reads a matrix from a file onto the heap. The result is a
+     * GeneralMatrix, TriMatrix, BandMatrix or SparseMatrix according to the
+     * type in the header.
+     *
+     * @param path  The file to read.
+     * @return      The matrix.
+     */
+    public static Matrix read(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header h = readHeader(ch);
+            long pos = HEADER_BYTES;
+            switch (h.type) {
+            case TRIDIAGONAL: {
+                TriMatrix T = new TriMatrix(h.n);
+                pos = getDoubles(ch, pos, T.diagonal(), 0, h.n);
+                pos = getDoubles(ch, pos, T.lowerDiagonal(), 0, h.n-1);
+                getDoubles(ch, pos, T.upperDiagonal(), 0, h.n-1);
+                return T;
+            }
+            case BAND: {
+                BandMatrix B = new BandMatrix(h.n, (int) h.p1, (int) h.p2);
+                getRecords(ch, pos, B.ab, 0, B.ldab, h.n, B.kl + B.ku + 1);
+                return B;
+            }
+            case SPARSE: {
+                int nnz = (int) h.p1;
+                int[] rowPtr = new int[h.m+1], colIdx = new int[nnz];
+                double[] values = new double[nnz];
+                pos = getInts(ch, pos, rowPtr, h.m+1);
+                pos = getInts(ch, pos, colIdx, nnz);
+                getDoubles(ch, (pos + 7) & -8, values, 0, nnz);
+                return new SparseMatrix(h.m, h.n, rowPtr, colIdx, values);
+            }
+            default:
+                return readDense(ch, h);
+            }
+        }
+    }
+
+    /**
+     * Reads a dense matrix into a new GeneralMatrix. A row-major file is
+     * copied straight into the storage; a column-major one is mapped up to
+     * MAX_MAP_BYTES at a time and each column copied out and scattered
+     * into its place.
+     */
+    private static GeneralMatrix readDense(FileChannel ch, Header h) throws IOException {
+        if ((long) h.m*h.n > Integer.MAX_VALUE - 8)
+            throw new MatrixException("Matrix is too large for the heap; use MatrixIO.map");
+        GeneralMatrix G = new GeneralMatrix(h.m, h.n);
+        double[] a = G.array();
+        if (h.layout == ROW_MAJOR) {
+            getDoubles(ch, HEADER_BYTES, a, 0, h.m*h.n);
+        } else {
+            double[] col = new double[h.m];
+            long colBytes = 8L*h.m;
+            int colsPerMap = (int) Math.max(1, Math.min(h.n, MAX_MAP_BYTES/colBytes));
+            for (int j0 = 0; j0 < h.n; j0 += colsPerMap) {
+                int cols = Math.min(colsPerMap, h.n - j0);
+                DoubleBuffer db = map(ch, FileChannel.MapMode.READ_ONLY,
+                                      HEADER_BYTES + j0*colBytes, cols*colBytes).asDoubleBuffer();
+                for (int j = j0; j < j0 + cols; j++) {
+                    db.get((j - j0)*h.m, col, 0, h.m);
+                    for (int i = 0; i < h.m; i++)
+                        a[i*h.n+j] = col[i];
+                }
+            }
+        }
+        return G;
+    }
+
+    /**
+     * Returns the type of matrix held in a file.
+     *
+     * @param path  The file to inspect.
+     * @return      The type in its header.
+     */
+    public static Type typeOf(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return readHeader(ch).type;
+        }
+    }
+
+    /**
+     * Maps a dense row-major file as an OffHeapMatrix without copying it.
+     * The matrix reads the pages of the file as they are needed, so it may
+     * be larger than memory. If writable, changes to the matrix, including
+     * an LU decomposition from decompInPlace, are written to the file;
+     * otherwise changing it throws a ReadOnlyBufferException. The mapping
+     * is released by the garbage collector once the matrix is unreachable.
+     *
+     * @param path      The file to map.
+     * @param writable  Whether the matrix may be changed.
+     * @param shared    Whether the matrix may be used from any thread.
+     * @return          The mapped matrix.
+     */
+    public static OffHeapMatrix map(Path path, boolean writable, boolean shared) throws IOException {
+        StandardOpenOption[] options = writable
+            ? new StandardOpenOption[] {StandardOpenOption.READ, StandardOpenOption.WRITE}
+            : new StandardOpenOption[] {StandardOpenOption.READ};
+        try (FileChannel ch = FileChannel.open(path, options)) {
+            Header h = readHeader(ch);
+            if (h.type != Type.DENSE || h.layout != ROW_MAJOR)
+                throw new MatrixException("Only dense row-major files can be mapped");
+            return mapDense(ch, h.m, h.n, writable, shared);
+        }
+    }
+
+    /**
+     * Creates a file holding an m x n dense matrix of zeros, replacing it if
+     * it exists, and maps it for writing as in map().
+     *
+     * @param path    The file to create.
+     * @param M       The 'row' dimension of the matrix.
+     * @param N       The 'column' dimension of the matrix.
+     * @param shared  Whether the matrix may be used from any thread.
+     * @return        The mapped matrix.
+     */
+    public static OffHeapMatrix create(Path path, int M, int N, boolean shared) throws IOException {
+        if (M < 1 || N < 1)
+            throw new MatrixException("Matrix dimensions must be positive");
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            Header h = new Header();
+            h.type = Type.DENSE;
+            h.layout = ROW_MAJOR;
+            h.m = M;
+            h.n = N;
+            writeHeader(ch, h);
+            return mapDense(ch, M, N, true, shared);
+        }
+    }
+
+    /**
+     * Maps the data of a dense file in chunks of whole rows, split in the
+     * same way as the chunks of an OffHeapMatrix.
+     */
+    private static OffHeapMatrix mapDense(FileChannel ch, int M, int N, boolean writable,
+                                          boolean shared) throws IOException {
+        if (8L*N + 2*OffHeapMatrix.ALIGNMENT > Integer.MAX_VALUE)
+            throw new MatrixException("Rows are too long for off-heap storage");
+        FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE
+                                            : FileChannel.MapMode.READ_ONLY;
+        long rowBytes = 8L*N;
+        int rowsPerChunk = OffHeapMatrix.chunkRows(M, N);
+        DoubleBuffer[] chunks = new DoubleBuffer[(M + rowsPerChunk - 1)/rowsPerChunk];
+        for (int k = 0; k < chunks.length; k++) {
+            int rows = Math.min(rowsPerChunk, M - k*rowsPerChunk);
+            chunks[k] = map(ch, mode, HEADER_BYTES + k*rowsPerChunk*rowBytes, rows*rowBytes)
+                        .asDoubleBuffer();
+        }
+        return new OffHeapMatrix(M, N, chunks, rowsPerChunk, shared);
+    }
+
+    private static void writeHeader(FileChannel ch, Header h) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(MAGIC);
+        b.putInt(VERSION);
+        b.putInt(h.type.ordinal());
+        b.putInt(h.layout);
+        b.putInt(0);
+        b.putLong(h.m);
+        b.putLong(h.n);
+        b.putLong(h.p1);
+        b.putLong(h.p2);
+        b.putLong(0L);
+        b.flip();
+        long pos = 0;
+        while (b.hasRemaining())
+            pos += ch.write(b, pos);
+    }
+
+    /**
+     * Reads and checks the header, including that the file is long enough
+     * to hold the data it describes.
+     */
+    private static Header readHeader(FileChannel ch) throws IOException {
+        if (ch.size() < HEADER_BYTES)
+            throw new MatrixException("Not a matrix file");
+        ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining())
+            if (ch.read(b, b.position()) < 0)
+                throw new MatrixException("Not a matrix file");
+        b.flip();
+        for (byte c : MAGIC)
+            if (b.get() != c)
+                throw new MatrixException("Not a matrix file");
+        int version = b.getInt();
+        if (version < 1 || version > VERSION)
+            throw new MatrixException("Unsupported matrix file version " + version);
+        int type = b.getInt();
+        if (type < 0 || type >= Type.values().length)
+            throw new MatrixException("Unknown matrix type " + type);
+        Header h = new Header();
+        h.type = Type.values()[type];
+        h.layout = b.getInt();
+        b.getInt();
+        long m = b.getLong(), n = b.getLong();
+        h.p1 = b.getLong();
+        h.p2 = b.getLong();
+        if (m < 1 || n < 1 || m > Integer.MAX_VALUE || n > Integer.MAX_VALUE)
+            throw new MatrixException("Matrix dimensions must be positive");
+        h.m = (int) m;
+        h.n = (int) n;
+
+        long bytes;
+        switch (h.type) {
+        case TRIDIAGONAL:
+            if (m != n)
+                throw new MatrixException("Matrix is not square");
+            bytes = 8L*(3*n - 2);
+            break;
+        case BAND:
+            if (m != n || h.p1 < 0 || h.p2 < 0 || h.p1 >= n || h.p2 >= n)
+                throw new MatrixException("Bandwidths must be between 0 and n-1");
+            bytes = 8L*n*(h.p1 + h.p2 + 1);
+            break;
+        case SPARSE:
+            if (h.p1 < 0 || h.p1 > Integer.MAX_VALUE)
+                throw new MatrixException("Invalid number of non-zeros");
+            bytes = ((4L*(m + 1 + h.p1) + 7) & -8) + 8L*h.p1;
+            break;
+        default:
+            if (h.layout != ROW_MAJOR && h.layout != COLUMN_MAJOR)
+                throw new MatrixException("Unknown layout " + h.layout);
+            bytes = 8L*m*n;
+        }
+        if (ch.size() < HEADER_BYTES + bytes)
+            throw new MatrixException("Matrix file is truncated");
+        return h;
+    }
+
+    /**
+     * Maps a region of the file as little-endian.
+     */
+    private static ByteBuffer map(FileChannel ch, FileChannel.MapMode mode, long pos, long len)
+        throws IOException {
+        return ch.map(mode, pos, len).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copies len doubles from a[off..] to the file at pos, mapping at most
+     * MAX_MAP_BYTES at a time.
+     *
+     * @return The position after the last double written.
+     */
+    private static long putDoubles(FileChannel ch, long pos, double[] a, int off, int len)
+        throws IOException {
+        while (len > 0) {
+            int k = (int) Math.min(len, MAX_MAP_BYTES/8);
+            map(ch, FileChannel.MapMode.READ_WRITE, pos, 8L*k).asDoubleBuffer().put(a, off, k);
+            pos += 8L*k;
+            off += k;
+            len -= k;
+        }
+        return pos;
+    }
+
+    /**
+     * Copies len doubles from the file at pos to a[off..].
+     *
+     * @return The position after the last double read.
+     */
+    private static long getDoubles(FileChannel ch, long pos, double[] a, int off, int len)
+        throws IOException {
+        while (len > 0) {
+            int k = (int) Math.min(len, MAX_MAP_BYTES/8);
+            map(ch, FileChannel.MapMode.READ_ONLY, pos, 8L*k).asDoubleBuffer().get(a, off, k);
+            pos += 8L*k;
+            off += k;
+            len -= k;
+        }
+        return pos;
+    }
+
+    /**
+     * Copies count records of len doubles, record r from a[off + r*stride..],
+     * to consecutive places in the file at pos. As many whole records as fit
+     * in MAX_MAP_BYTES are mapped at once, and each is copied with one
+     * positioned bulk put.
+     */
+    private static void putRecords(FileChannel ch, long pos, double[] a, int off, int stride,
+                                   int count, int len) throws IOException {
+        long recBytes = 8L*len;
+        int perMap = (int) Math.max(1, Math.min(count, MAX_MAP_BYTES/recBytes));
+        for (int r0 = 0; r0 < count; r0 += perMap) {
+            int k = Math.min(perMap, count - r0);
+            DoubleBuffer db = map(ch, FileChannel.MapMode.READ_WRITE, pos + r0*recBytes, k*recBytes)
+                              .asDoubleBuffer();
+            for (int r = 0; r < k; r++)
+                db.put(r*len, a, off + (r0 + r)*stride, len);
+        }
+    }
+
+    /**
+     * Copies count records of len doubles from consecutive places in the
+     * file at pos, record r to a[off + r*stride..], mapping as in
+     * putRecords.
+     */
+    private static void getRecords(FileChannel ch, long pos, double[] a, int off, int stride,
+                                   int count, int len) throws IOException {
+        long recBytes = 8L*len;
+        int perMap = (int) Math.max(1, Math.min(count, MAX_MAP_BYTES/recBytes));
+        for (int r0 = 0; r0 < count; r0 += perMap) {
+            int k = Math.min(perMap, count - r0);
+            DoubleBuffer db = map(ch, FileChannel.MapMode.READ_ONLY, pos + r0*recBytes, k*recBytes)
+                              .asDoubleBuffer();
+            for (int r = 0; r < k; r++)
+                db.get(r*len, a, off + (r0 + r)*stride, len);
+        }
+    }
+
+    private static long putInts(FileChannel ch, long pos, int[] a, int len) throws IOException {
+        for (int off = 0; off < len; ) {
+            int k = (int) Math.min(len - off, MAX_MAP_BYTES/4);
+            IntBuffer ib = map(ch, FileChannel.MapMode.READ_WRITE, pos, 4L*k).asIntBuffer();
+            ib.put(a, off, k);
+            pos += 4L*k;
+            off += k;
+        }
+        return pos;
+    }
+
+    private static long getInts(FileChannel ch, long pos, int[] a, int len) throws IOException {
+        for (int off = 0; off < len; ) {
+            int k = (int) Math.min(len - off, MAX_MAP_BYTES/4);
+            IntBuffer ib = map(ch, FileChannel.MapMode.READ_ONLY, pos, 4L*k).asIntBuffer();
+            ib.get(a, off, k);
+            pos += 4L*k;
+            off += k;
+        }
+        return pos;
+    }
+
+    /*
+     * Main function with some manual tests: writes and reads back each kind
+     * of matrix, and times loading a large dense matrix.
+     */
+    public static void main(String[] args) throws IOException {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Path dir = Path.of(System.getProperty("java.io.tmpdir"));
+        Path file = dir.resolve("matrixio-test.bin");
+
+        TriMatrix t = new TriMatrix(5);
+        t.random(RandomFill.create(1));
+        write(t, file);
+        System.out.println(typeOf(file) + ": " + (read(file).determinant() == t.determinant()));
+
+        BandMatrix b = new BandMatrix(6, 1, 2);
+        b.random(RandomFill.create(2));
+        write(b, file);
+        System.out.println(typeOf(file) + ": " + (read(file).determinant() == b.determinant()));
+
+        SparseMatrix s = SparseMatrix.fromTriplets(3, 3, new int[] {0, 1, 2, 2},
+                                                   new int[] {0, 1, 0, 2},
+                                                   new double[] {2, 3, 1, 4});
+        write(s, file);
+        System.out.println(typeOf(file) + ": " + (read(file).determinant() == s.determinant()));
+
+        GeneralMatrix g = new GeneralMatrix(N, N);
+        g.random(RandomFill.create(3));
+        long t0 = System.nanoTime();
+        write(g, file);
+        long t1 = System.nanoTime();
+        Matrix r = read(file);
+        long t2 = System.nanoTime();
+        OffHeapMatrix o = map(file, false, false);
+        long t3 = System.nanoTime();
+        System.out.println(typeOf(file) + ": " + (r.getIJ(N-1, N-1) == g.getIJ(N-1, N-1))
+                           + " " + (o.getIJ(N-1, N-1) == g.getIJ(N-1, N-1)));
+        System.out.printf("write %.1f ms, read %.1f ms, map %.1f ms%n",
+                          (t1-t0)/1e6, (t2-t1)/1e6, (t3-t2)/1e6);
+    }
+}
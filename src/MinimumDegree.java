@@ -0,0 +1,194 @@
+/*
+ * This class computes a fill-reducing ordering for SparseLU with the
+ * minimum degree heuristic, applied to the pattern of A + A^T.
+ *
+ * Gaussian elimination on a symmetric pattern is elimination on a graph:
+ * removing vertex v joins all of its neighbours into a clique, and the new
+ * edges are the fill-in. Minimum degree repeatedly eliminates a vertex of
+ * smallest degree, which keeps the cliques, and so the fill, small.
+ *
+ * Forming the cliques explicitly costs O(d^2) per step, so as in AMD the
+ * graph is kept in quotient form instead: each eliminated vertex becomes an
+ * "element" standing for the clique of its remaining neighbours, and every
+ * variable keeps a list of adjacent variables and a list of adjacent
+ * elements. An element whose variables all belong to a newer element is
+ * absorbed into it. Exact degrees are expensive to maintain in this form,
+ * so the AMD upper bound |A_i| + |L_p| + sum |L_e \ L_p| is used. Unlike
+ * full AMD there is no detection of indistinguishable variables, which
+ * would speed it up further on very regular meshes.
+ */
+
+import java.util.Arrays;
+
+class MinimumDegree {
+    private MinimumDegree() {}
+
+    /**
+     * Returns an approximate minimum degree ordering of the pattern of
+     * A + A^T, ignoring the diagonal.
+     *
+     * @param A  A square sparse matrix.
+     * @return   The ordering: vertex order[k] is eliminated at step k.
+     */
+    static int[] order(SparseMatrix A) {
+        int n = A.n;
+        SparseMatrix At = A.transpose();
+
+        // The variable lists, initially the graph of A + A^T.
+        int[][] vars = new int[n][];
+        int[] nv = new int[n], mark = new int[n];
+        Arrays.fill(mark, -1);
+        int[] buf = new int[n];
+        for (int i = 0; i < n; i++) {
+            int len = 0;
+            mark[i] = i;
+            for (int p = A.rowPtr[i]; p < A.rowPtr[i+1]; p++) {
+                int j = A.colIdx[p];
+                if (mark[j] != i) {
+                    mark[j] = i;
+                    buf[len++] = j;
+                }
+            }
+            for (int p = At.rowPtr[i]; p < At.rowPtr[i+1]; p++) {
+                int j = At.colIdx[p];
+                if (mark[j] != i) {
+                    mark[j] = i;
+                    buf[len++] = j;
+                }
+            }
+            vars[i] = Arrays.copyOf(buf, len);
+            nv[i] = len;
+        }
+
+        // The element lists of each variable, and the variables of each
+        // element. Element e is the clique left by eliminating vertex e.
+        int[][] elems = new int[n][], members = new int[n][];
+        int[] ne = new int[n];
+        boolean[] dead = new boolean[n];
+        for (int i = 0; i < n; i++)
+            elems[i] = new int[4];
+
+        // Doubly linked lists of the variables of each degree.
+        int[] deg = nv.clone();
+        int[] head = new int[n], next = new int[n], prev = new int[n];
+        Arrays.fill(head, -1);
+        for (int v = n-1; v >= 0; v--)
+            insert(v, deg[v], head, next, prev);
+
+        Arrays.fill(mark, -1);
+        int[] w = new int[n], wmark = new int[n];
+        Arrays.fill(wmark, -1);
+        int[] order = new int[n];
+        int minDeg = 0;
+        for (int k = 0; k < n; k++) {
+            while (head[minDeg] == -1)
+                minDeg++;
+            int p = head[minDeg];
+            remove(p, deg[p], head, next, prev);
+            order[k] = p;
+
+            // L_p is the union of p's variables and of the variables of
+            // its elements, which are absorbed into p.
+            mark[p] = k;
+            int cnt = 0;
+            for (int a = 0; a < nv[p]; a++) {
+                int v = vars[p][a];
+                if (mark[v] != k) {
+                    mark[v] = k;
+                    buf[cnt++] = v;
+                }
+            }
+            for (int a = 0; a < ne[p]; a++) {
+                int e = elems[p][a];
+                int[] le = members[e];
+                for (int b = 0; b < le.length; b++) {
+                    int v = le[b];
+                    if (mark[v] != k) {
+                        mark[v] = k;
+                        buf[cnt++] = v;
+                    }
+                }
+                dead[e] = true;
+                members[e] = null;
+            }
+            int[] lp = Arrays.copyOf(buf, cnt);
+            members[p] = lp;
+            vars[p] = null;
+            elems[p] = null;
+
+            // Variables of L_p covered by element p are dropped from the
+            // variable lists, and absorbed elements from the element lists.
+            for (int i : lp) {
+                remove(i, deg[i], head, next, prev);
+                int[] vi = vars[i];
+                int len = 0;
+                for (int a = 0; a < nv[i]; a++)
+                    if (mark[vi[a]] != k)
+                        vi[len++] = vi[a];
+                nv[i] = len;
+                int[] ei = elems[i];
+                len = 0;
+                for (int a = 0; a < ne[i]; a++)
+                    if (!dead[ei[a]])
+                        ei[len++] = ei[a];
+                ne[i] = len;
+            }
+
+            // w[e] = |L_e \ L_p| for every element adjacent to L_p.
+            for (int i : lp) {
+                for (int a = 0; a < ne[i]; a++) {
+                    int e = elems[i][a];
+                    if (wmark[e] != k) {
+                        wmark[e] = k;
+                        w[e] = members[e].length;
+                    }
+                    w[e]--;
+                }
+            }
+
+            // Approximate degrees. Elements inside L_p are absorbed.
+            int bound = n-k-2;
+            for (int i : lp) {
+                int d = nv[i] + cnt - 1;
+                int[] ei = elems[i];
+                int len = 0;
+                for (int a = 0; a < ne[i]; a++) {
+                    int e = ei[a];
+                    if (w[e] == 0) {
+                        dead[e] = true;
+                        members[e] = null;
+                    } else {
+                        d += w[e];
+                        ei[len++] = e;
+                    }
+                }
+                if (len == ei.length)
+                    elems[i] = ei = Arrays.copyOf(ei, 2*len);
+                ei[len++] = p;
+                ne[i] = len;
+                d = Math.max(0, Math.min(d, Math.min(bound, deg[i] + cnt)));
+                deg[i] = d;
+                insert(i, d, head, next, prev);
+                minDeg = Math.min(minDeg, d);
+            }
+        }
+        return order;
+    }
+
+    private static void insert(int v, int d, int[] head, int[] next, int[] prev) {
+        next[v] = head[d];
+        prev[v] = -1;
+        if (head[d] != -1)
+            prev[head[d]] = v;
+        head[d] = v;
+    }
+
+    private static void remove(int v, int d, int[] head, int[] next, int[] prev) {
+        if (prev[v] != -1)
+            next[prev[v]] = next[v];
+        else
+            head[d] = next[v];
+        if (next[v] != -1)
+            prev[next[v]] = prev[v];
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * Contains a template for an OffHeapMatrix object. This is a dense matrix
+ * like GeneralMatrix, but its entries live outside the Java heap in direct
+ * buffers, so a matrix of many gigabytes adds nothing to the heap, is never
+ * copied or scanned by the garbage collector and is limited only by the
+ * memory of the machine.
+ *
+ * The entries are stored row-major in native byte order. A single buffer
+ * holds at most 2^31 bytes, so the rows are spread over chunks of at most
+ * MAX_CHUNK_BYTES each, with no row split between chunks. Every chunk it
+ * allocates starts on a 64-byte boundary, the size of a cache line. A
+ * matrix can also wrap the mapping of a file made by MatrixIO.map, in
+ * which case its entries are the pages of the file.
+ *
+ * The memory is released by close(). A confined matrix may only be used
+ * and closed by the thread which created it, and its memory is freed at
+ * once. A shared matrix may be used from any thread; closing it makes
+ * further use fail, and the memory is returned once the garbage collector
+ * finds the buffers unreachable, so that a thread still working on it
+ * cannot touch freed memory.
+ *
+ * The operations work through the matrix a block of rows at a time,
+ * copying each block into a small heap buffer, running the same kernels
+ * and Gemm as GeneralMatrix on it and copying it back. The blocks are
+ * BLOCK rows or columns wide, so each double copied takes part in
+ * O(BLOCK) floating point operations and the copying costs little.
+ */
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.random.RandomGenerator;
+
+public class OffHeapMatrix extends Matrix implements AutoCloseable {
+    /**
+     * The alignment of each chunk in bytes.
+     */
+    public static final int ALIGNMENT = 64;
+
+    /**
+     * The largest chunk in bytes.
+     */
+    static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    /**
+     * The width of the blocks which are copied to the heap.
+     */
+    static final int BLOCK = 256;
+
+    /**
+     * sun.misc.Unsafe.invokeCleaner, used to free a confined matrix at
+     * once, or null if it is not available, in which case the memory is
+     * freed by the garbage collector.
+     */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            cleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = cleaner;
+    }
+
+    /**
+     * The direct buffers as allocated, which are needed to free them, and
+     * the aligned views of them which hold the entries. chunks is null once
+     * the matrix is closed.
+     */
+    private ByteBuffer[] raw;
+    private volatile DoubleBuffer[] chunks;
+
+    /**
+     * The number of rows in every chunk but the last.
+     */
+    private final int rowsPerChunk;
+
+    /**
+     * The thread which may use a confined matrix, or null if it is shared.
+     */
+    private final Thread owner;
+
+    /**
+     * Constructor function for a confined m x n matrix of zeros.
+     *
+     * @param M  The 'row' dimension of the matrix.
+     * @param N  The 'column' dimension of the matrix.
+     */
+    public OffHeapMatrix(int M, int N) {
+        this(M, N, false);
+    }
+
+    /**
+     * Constructor function for an m x n matrix of zeros.
+     *
+     * @param M       The 'row' dimension of the matrix.
+     * @param N       The 'column' dimension of the matrix.
+     * @param shared  Whether the matrix may be used from any thread.
+     */
+    public OffHeapMatrix(int M, int N, boolean shared) {
+        super(M, N);
+        if (M < 1 || N < 1)
+            throw new MatrixException("Matrix dimensions must be positive");
+        long rowBytes = 8L*N;
+        if (rowBytes + 2*ALIGNMENT > Integer.MAX_VALUE)
+            throw new MatrixException("Rows are too long for off-heap storage");
+        this.rowsPerChunk = chunkRows(M, N);
+        this.owner = shared ? null : Thread.currentThread();
+
+        int count = (M + rowsPerChunk - 1)/rowsPerChunk;
+        raw = new ByteBuffer[count];
+        DoubleBuffer[] c = new DoubleBuffer[count];
+        for (int k = 0; k < count; k++) {
+            int rows = Math.min(rowsPerChunk, M - k*rowsPerChunk);
+            int bytes = (int) (rows*rowBytes);
+            // alignedSlice also rounds the capacity down to a multiple of
+            // the alignment, so round up and leave room to align the start.
+            int padded = (bytes + ALIGNMENT - 1) & -ALIGNMENT;
+            raw[k] = ByteBuffer.allocateDirect(padded + ALIGNMENT - 1);
+            ByteBuffer aligned = raw[k].alignedSlice(ALIGNMENT);
+            aligned.limit(bytes);
+            c[k] = aligned.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+        chunks = c;
+    }
+
+    /**
+     * Constructor function which wraps existing buffers, such as the
+     * mappings of a file. Chunk k holds rows k*rowsPerChunk onwards. The
+     * buffers are not freed by close() but by the garbage collector.
+     *
+     * @param M             The 'row' dimension of the matrix.
+     * @param N             The 'column' dimension of the matrix.
+     * @param chunks        The buffers holding the entries row-major.
+     * @param rowsPerChunk  The number of rows in every chunk but the last.
+     * @param shared        Whether the matrix may be used from any thread.
+     */
+    OffHeapMatrix(int M, int N, DoubleBuffer[] chunks, int rowsPerChunk, boolean shared) {
+        super(M, N);
+        this.rowsPerChunk = rowsPerChunk;
+        this.owner = shared ? null : Thread.currentThread();
+        this.raw = null;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns the number of rows in every chunk but the last of an m x n
+     * matrix.
+     */
+    static int chunkRows(int M, int N) {
+        return (int) Math.max(1, Math.min(M, MAX_CHUNK_BYTES/(8L*N)));
+    }
+
+    /**
+     * Constructor function which copies a matrix off the heap.
+     *
+     * @param A       The matrix to copy.
+     * @param shared  Whether the copy may be used from any thread.
+     */
+    public OffHeapMatrix(Matrix A, boolean shared) {
+        this(A.m, A.n, shared);
+        double[] row = new double[n];
+        for (int i = 0; i < m; i++) {
+            A.getRow(i, 0, row, 0, n);
+            putRow(i, 0, row, 0, n);
+        }
+    }
+
+    /**
+     * @return Whether the matrix may be used from any thread.
+     */
+    public boolean isShared() {
+        return owner == null;
+    }
+
+    /**
+     * @return Whether the matrix has been closed.
+     */
+    public boolean isClosed() {
+        return chunks == null;
+    }
+
+    /**
+     * Releases the memory. Further use of the matrix throws a
+     * MatrixException. Closing a matrix twice has no effect.
+     */
+    public void close() {
+        DoubleBuffer[] c = chunks;
+        if (c == null)
+            return;
+        checkOwner();
+        chunks = null;
+        ByteBuffer[] r = raw;
+        raw = null;
+        if (r != null && owner != null && INVOKE_CLEANER != null) {
+            try {
+                for (ByteBuffer b : r)
+                    INVOKE_CLEANER.invoke(UNSAFE, b);
+            } catch (ReflectiveOperationException e) {
+                // Leave it to the garbage collector.
+            }
+        }
+    }
+
+    private void checkOwner() {
+        if (owner != null && Thread.currentThread() != owner)
+            throw new MatrixException("Matrix is confined to the thread which created it");
+    }
+
+    /**
+     * Returns the chunks after checking that the matrix is open and may be
+     * used from this thread.
+     */
+    private DoubleBuffer[] buffers() {
+        DoubleBuffer[] c = chunks;
+        if (c == null)
+            throw new MatrixException("Matrix has been closed");
+        checkOwner();
+        return c;
+    }
+
+    /**
+     * Copies len entries of row i, starting at column j0, into dst[off..]
+     * with a single bulk get from the buffer holding the row.
+     *
+     * @param i    The row.
+     * @param j0   The first column to copy.
+     * @param dst  The array to copy into.
+     * @param off  The index in dst of the first entry.
+     * @param len  The number of entries to copy.
+     */
+    public void getRow(int i, int j0, double[] dst, int off, int len) {
+        if (i < 0 || i >= m || j0 < 0 || len < 0 || j0 + len > n)
+            throw new MatrixException("Index Out of Bounds");
+        buffers()[i/rowsPerChunk].get((i % rowsPerChunk)*n + j0, dst, off, len);
+    }
+
+    /**
+     * Copies len entries from src[off..] into row i starting at column j.
+     */
+    void putRow(int i, int j, double[] src, int off, int len) {
+        buffers()[i/rowsPerChunk].put((i % rowsPerChunk)*n + j, src, off, len);
+    }
+
+    /**
+     * Copies the block of rows r0..r0+rows-1 and columns c0..c0+cols-1 into
+     * dst, with consecutive rows cols apart.
+     */
+    private void getBlock(int r0, int rows, int c0, int cols, double[] dst) {
+        for (int i = 0; i < rows; i++)
+            getRow(r0+i, c0, dst, i*cols, cols);
+    }
+
+    private void putBlock(int r0, int rows, int c0, int cols, double[] src) {
+        for (int i = 0; i < rows; i++)
+            putRow(r0+i, c0, src, i*cols, cols);
+    }
+
+    /**
+     * Getter function: return the (i,j)th entry of the matrix.
+     *
+     * @param i  The location in the first co-ordinate.
+     * @param j  The location in the second co-ordinate.
+     * @return   The (i,j)th entry of the matrix.
+     */
+    public double getIJ(int i, int j) {
+        if (i < 0 || i >= m || j < 0 || j >= n)
+            throw new MatrixException("Index Out of Bounds");
+        return buffers()[i/rowsPerChunk].get((i % rowsPerChunk)*n + j);
+    }
+
+    /**
+     * Setter function: set the (i,j)th entry of the matrix.
+     *
+     * @param i    The location in the first coordinate.
+     * @param j    The location in the second coordinate.
+     * @param val  The value to set the (i,j)th entry to.
+     */
+    public void setIJ(int i, int j, double val) {
+        if (i < 0 || i >= m || j < 0 || j >= n)
+            throw new MatrixException("Index Out of Bounds");
+        buffers()[i/rowsPerChunk].put((i % rowsPerChunk)*n + j, val);
+    }
+
+    /**
+     * Copies the matrix onto the heap.
+     *
+     * @return A GeneralMatrix holding the same entries.
+     */
+    public GeneralMatrix toGeneralMatrix() {
+        GeneralMatrix G = new GeneralMatrix(m, n);
+        for (int i = 0; i < m; i++)
+            getRow(i, 0, G.array(), i*n, n);
+        return G;
+    }
+
+    /**
+     * Returns the LU decomposition of this matrix in a new OffHeapMatrix
+     * with the same sharing, packed in the same way as
+     * GeneralMatrix.decomp. The caller should close it when done.
+     *
+     * @param d  An array of length 1. On exit, the value contained in here
+     *           will either be 1 or -1, which will be used to calculate the
+     *           correct sign on the determinant.
+     * @return   The LU decomposition of the matrix.
+     */
+    public OffHeapMatrix decomp(double[] d) {
+        OffHeapMatrix a = new OffHeapMatrix(this, isShared());
+        try {
+            a.decompInPlace(d);
+        } catch (RuntimeException e) {
+            a.close();
+            throw e;
+        }
+        return a;
+    }
+
+    /**
+     * Overwrites this matrix with its LU decomposition, packed in the same
+     * way as GeneralMatrix.decomp.
+     *
+     * This is the blocked right-looking algorithm of DenseLU.blocked, as in
+     * LAPACK's dgetrf, with panels of BLOCK columns. Each panel is copied
+     * to the heap and factorised there with partial pivoting, the row
+     * interchanges are applied to the rest of the matrix, the block row of
+     * U is found by forward substitution and the trailing matrix is updated
+     * a block of rows at a time with Gemm, in parallel for large matrices.
+     *
+     * @param d  An array of length 1. On exit, the value contained in here
+     *           will either be 1 or -1, which will be used to calculate the
+     *           correct sign on the determinant.
+     * @return   This matrix, now holding its LU decomposition.
+     */
+    public OffHeapMatrix decompInPlace(double[] d) {
+        if (n != m)
+            throw new MatrixException("Matrix is not square");
+        if (d.length != 1)
+            throw new MatrixException("d should be of length 1");
+        d[0] = factor(new int[n]);
+        return this;
+    }
+
+    /**
+     * Factorises in place as described in decompInPlace.
+     *
+     * @param piv  On exit row j was swapped with row piv[j] at step j.
+     * @return     1 or -1, the sign due to the row interchanges.
+     */
+    private double factor(int[] piv) {
+        double[] row = new double[n];
+        for (int i = 0; i < n; i++) {
+            getRow(i, 0, row, 0, n);
+            double big = 0.0;
+            for (int j = 0; j < n; j++)
+                big = Math.max(big, Math.abs(row[j]));
+            if (big == 0.0)
+                throw new MatrixException("Matrix is singular");
+        }
+
+        ForkJoinPool pool = n < DenseLU.getParallelThreshold() ? null : DenseLU.pool();
+        int nb = Math.min(BLOCK, n);
+        double[] panel = new double[n*nb], u = new double[nb*n], c = new double[nb*n];
+        double[] t1 = new double[n], t2 = new double[n];
+        double sign = 1.0;
+
+        for (int k0 = 0; k0 < n; k0 += nb) {
+            int k1 = Math.min(k0 + nb, n), w = k1 - k0, rows = n - k0;
+
+            // Factorise the panel of columns k0..k1-1 on the heap.
+            getBlock(k0, rows, k0, w, panel);
+            sign *= factorPanel(panel, rows, w, piv, k0, pool);
+            putBlock(k0, rows, k0, w, panel);
+
+            // Apply the interchanges to the columns either side.
+            for (int j = k0; j < k1; j++) {
+                int p = piv[j];
+                if (p == j)
+                    continue;
+                if (k0 > 0)
+                    swapRows(j, p, 0, k0, t1, t2);
+                if (k1 < n)
+                    swapRows(j, p, k1, n - k1, t1, t2);
+            }
+            if (k1 == n)
+                break;
+
+            // U12 = inv(L11)*A12.
+            int rest = n - k1;
+            getBlock(k0, w, k1, rest, u);
+            for (int j = 0; j < w; j++)
+                for (int i = j+1; i < w; i++)
+                    Kernels.axpy(rest, -panel[i*w+j], u, j*rest, u, i*rest);
+            putBlock(k0, w, k1, rest, u);
+
+            // A22 -= L21*U12, a block of rows at a time.
+            for (int r0 = k1; r0 < n; r0 += nb) {
+                int rb = Math.min(nb, n - r0);
+                getBlock(r0, rb, k1, rest, c);
+                Gemm.multiply(rb, rest, w, -1.0, panel, (r0-k0)*w, w, u, 0, rest,
+                              c, 0, rest, pool);
+                putBlock(r0, rb, k1, rest, c);
+            }
+        }
+        return sign;
+    }
+
+    /**
+     * Factorises a rows x w panel held row-major in p with partial
+     * pivoting, swapping whole rows of the panel. The panel is itself
+     * processed in sub-panels of DenseLU.BLOCK_SIZE columns, with the rest
+     * of the panel updated by Gemm, exactly as in DenseLU.blocked. It is
+     * also used for the panels of OutOfCoreLU.
+     *
+     * @param base  The index of the panel's first row and column in the
+     *              whole matrix, used to record the interchanges in piv.
+     * @param pool  If not null, the pool for the updates.
+     * @return      1 or -1, the sign due to the row interchanges.
+     */
+    static double factorPanel(double[] p, int rows, int w, int[] piv, int base,
+                              ForkJoinPool pool) {
+        double sign = 1.0;
+        for (int j0 = 0; j0 < w; j0 += DenseLU.BLOCK_SIZE) {
+            int j1 = Math.min(j0 + DenseLU.BLOCK_SIZE, w);
+            for (int j = j0; j < j1; j++) {
+                int q = j;
+                double big = Math.abs(p[j*w+j]);
+                for (int i = j+1; i < rows; i++) {
+                    double t = Math.abs(p[i*w+j]);
+                    if (t > big) {
+                        big = t;
+                        q = i;
+                    }
+                }
+                if (q != j) {
+                    Kernels.swap(w, p, j*w, p, q*w);
+                    sign = -sign;
+                }
+                piv[base+j] = base+q;
+                if (p[j*w+j] == 0.0)
+                    p[j*w+j] = 1.0e-20;
+                double dum = 1.0/p[j*w+j];
+                for (int i = j+1; i < rows; i++) {
+                    double lij = p[i*w+j] *= dum;
+                    if (lij != 0.0)
+                        Kernels.axpy(j1-j-1, -lij, p, j*w+j+1, p, i*w+j+1);
+                }
+            }
+            if (j1 == w)
+                break;
+            for (int j = j0; j < j1; j++)
+                for (int i = j+1; i < j1; i++)
+                    Kernels.axpy(w-j1, -p[i*w+j], p, j*w+j1, p, i*w+j1);
+            Gemm.multiply(rows-j1, w-j1, j1-j0, -1.0, p, j1*w+j0, w, p, j0*w+j1, w,
+                          p, j1*w+j1, w, pool);
+        }
+        return sign;
+    }
+
+    /**
+     * Swaps columns c0..c0+len-1 of rows i and j.
+     */
+    private void swapRows(int i, int j, int c0, int len, double[] t1, double[] t2) {
+        getRow(i, c0, t1, 0, len);
+        getRow(j, c0, t2, 0, len);
+        putRow(i, c0, t2, 0, len);
+        putRow(j, c0, t1, 0, len);
+    }
+
+    /**
+     * Return the determinant of this matrix. The matrix is factorised in an
+     * off-heap copy, which is closed afterwards.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        return scaledDeterminant().doubleValue();
+    }
+
+    /**
+     * Return the determinant of this matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        double[] d = new double[1];
+        try (OffHeapMatrix lu = decomp(d)) {
+            ScaledDeterminant.Accumulator result = new ScaledDeterminant.Accumulator(d[0]);
+            for (int i = 0; i < n; i++)
+                result.multiply(lu.getIJ(i, i));
+            return result.result();
+        }
+    }
+
+    /**
+     * Add the matrix to another matrix A. The result is a new
+     * OffHeapMatrix with the same sharing as this one.
+     *
+     * @param A  The Matrix to add to this matrix.
+     * @return   The sum of this matrix with the matrix A.
+     */
+    public Matrix add(Matrix A) {
+        if (A.m != m || A.n != n)
+            throw new MatrixException("The matricies are of different dimensions so cannot be summed.");
+        OffHeapMatrix result = new OffHeapMatrix(m, n, isShared());
+        double[] x = new double[n], y = new double[n];
+        for (int i = 0; i < m; i++) {
+            getRow(i, 0, x, 0, n);
+            A.getRow(i, 0, y, 0, n);
+            Kernels.add(n, x, 0, y, 0, x, 0);
+            result.putRow(i, 0, x, 0, n);
+        }
+        return result;
+    }
+
+    Matrix addTo(GeneralMatrix A) {
+        GeneralMatrix result = new GeneralMatrix(A);
+        double[] r = result.array(), x = new double[n];
+        for (int i = 0; i < m; i++) {
+            getRow(i, 0, x, 0, n);
+            Kernels.add(n, r, i*n, x, 0, r, i*n);
+        }
+        return result;
+    }
+
+    /**
+     * Multiply the matrix by another matrix A. This is a 'left' product,
+     * i.e. if this matrix is called B then it calculates the product BA.
+     * The result is a new OffHeapMatrix with the same sharing as this one.
+     *
+     * A is read in panels of BLOCK rows, each copied to the heap once, and
+     * every block of rows of the result is updated from it with Gemm.
+     *
+     * @param A  The Matrix to multiply by.
+     * @return   The product of this matrix with the matrix A.
+     */
+    public Matrix multiply(Matrix A) {
+        if (A.m != n)
+            throw new MatrixException("The matrices are of incompatible dimensions for multiplication.");
+        int p = A.n;
+        OffHeapMatrix result = new OffHeapMatrix(m, p, isShared());
+        ForkJoinPool pool = Math.max(m, Math.max(n, p)) < DenseLU.getParallelThreshold()
+                            ? null : DenseLU.pool();
+        int kb = Math.min(BLOCK, n), rb = Math.min(BLOCK, m);
+        double[] b = new double[kb*p], a = new double[rb*kb], c = new double[rb*p];
+        double[] row = new double[p];
+
+        for (int k0 = 0; k0 < n; k0 += kb) {
+            int kw = Math.min(kb, n - k0);
+            for (int k = 0; k < kw; k++) {
+                A.getRow(k0+k, 0, row, 0, p);
+                System.arraycopy(row, 0, b, k*p, p);
+            }
+            for (int r0 = 0; r0 < m; r0 += rb) {
+                int rows = Math.min(rb, m - r0);
+                getBlock(r0, rows, k0, kw, a);
+                if (k0 == 0)
+                    Arrays.fill(c, 0, rows*p, 0.0);
+                else
+                    result.getBlock(r0, rows, 0, p, c);
+                Gemm.multiply(rows, p, kw, 1.0, a, 0, kw, b, 0, p, c, 0, p, pool);
+                result.putBlock(r0, rows, 0, p, c);
+            }
+        }
+        return result;
+    }
+
+    Matrix multiplyLeftBy(GeneralMatrix A) {
+        // This matrix is read in panels of BLOCK rows, each copied to the
+        // heap once and multiplied into the whole result with Gemm.
+        GeneralMatrix result = new GeneralMatrix(A.m, n);
+        ForkJoinPool pool = Math.max(A.m, Math.max(m, n)) < DenseLU.getParallelThreshold()
+                            ? null : DenseLU.pool();
+        int kb = Math.min(BLOCK, m);
+        double[] b = new double[kb*n];
+        for (int k0 = 0; k0 < m; k0 += kb) {
+            int kw = Math.min(kb, m - k0);
+            getBlock(k0, kw, 0, n, b);
+            Gemm.multiply(A.m, n, kw, 1.0, A.array(), A.offset() + k0, A.stride(),
+                          b, 0, n, result.array(), 0, n, pool);
+        }
+        return result;
+    }
+
+    /**
+     * Multiply the matrix by a scalar. The result is a new OffHeapMatrix
+     * with the same sharing as this one.
+     *
+     * @param a  The scalar to multiply the matrix by.
+     * @return   The product of this matrix with the scalar a.
+     */
+    public Matrix multiply(double a) {
+        OffHeapMatrix result = new OffHeapMatrix(m, n, isShared());
+        double[] x = new double[n];
+        for (int i = 0; i < m; i++) {
+            getRow(i, 0, x, 0, n);
+            Kernels.scale(n, a, x, 0, x, 0);
+            result.putRow(i, 0, x, 0, n);
+        }
+        return result;
+    }
+
+    /**
+     * Fills the matrix with random numbers which are uniformly distributed
+     * between 0 and 1, drawn from the current thread's generator (see
+     * RandomFill).
+     */
+    public void random() {
+        random(RandomFill.current());
+    }
+
+    /**
+     * Fills the matrix with random numbers which are uniformly distributed
+     * between 0 and 1, drawn from the given generator.
+     *
+     * @param rng  The source of random numbers.
+     */
+    public void random(RandomGenerator rng) {
+        double[] x = new double[n];
+        for (int i = 0; i < m; i++) {
+            RandomFill.fill(x, 0, n, rng);
+            putRow(i, 0, x, 0, n);
+        }
+    }
+
+    /*
+     * Main function with some manual tests.
+     */
+    public static void main(String[] args) {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        try (OffHeapMatrix a = new OffHeapMatrix(N, N)) {
+            a.random(RandomFill.create(1));
+            GeneralMatrix g = a.toGeneralMatrix();
+            long t0 = System.nanoTime();
+            ScaledDeterminant s = a.scaledDeterminant();
+            long t1 = System.nanoTime();
+            System.out.println("Off-heap determinant: " + s + " in " + (t1-t0)/1e6 + " ms");
+            System.out.println("On-heap determinant:  "
+                               + g.scaledDeterminant(GeneralMatrix.Algorithm.BLOCKED,
+                                                     new LUWorkspace(N)));
+        }
+    }
+}
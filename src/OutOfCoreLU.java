@@ -0,0 +1,552 @@
+/*
+ * This class computes and holds the LU decomposition of a dense matrix
+ * which is too large for memory. The matrix is copied into a work file as
+ * square tiles of T x T doubles, each contiguous on disk, and the file is
+ * memory-mapped. The factorisation reads and writes tiles through a cache
+ * of a fixed number of tiles on the heap which evicts the least recently
+ * used tile, writing it back if it has changed. When it finishes the work
+ * file holds the packed factors and the row interchanges, so the
+ * decomposition can be opened again later without factorising.
+ *
+ * The algorithm is the right-looking blocked LU of DenseLU.blocked with
+ * panels one tile wide. For each block column k:
+ *
+ *   - the panel of tiles (I,k), I >= k, is gathered on the heap and
+ *     factorised with partial pivoting by OffHeapMatrix.factorPanel;
+ *   - for each tile column J > k the panel's interchanges are applied, the
+ *     tile (k,J) of U is found by forward substitution with the unit lower
+ *     triangle of tile (k,k), and every tile (I,J) below it is updated by
+ *     A(I,J) -= L(I,k) U(k,J) with Gemm.
+ *
+ * Each tile loaded takes part in O(T) floating point operations per double,
+ * so with T = 256 the work is dominated by arithmetic rather than by disk.
+ * Like LINPACK, and unlike GeneralMatrix.decomp, the interchanges are not
+ * applied to the columns of L already computed, which would mean reading
+ * all of them again at every step; solve() applies the interchanges of each
+ * panel just before its columns of L instead.
+ *
+ * The heap holds the cache, the panel (n x T doubles) and a few tiles, so
+ * with the defaults a 100000 x 100000 matrix needs about 330 MB of heap and
+ * an 80 GB work file. The matrix is padded to a whole number of tiles with
+ * the identity, which changes neither the determinant nor the solution.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+public class OutOfCoreLU {
+    /**
+     * The default tile size and number of tiles cached on the heap.
+     */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final int DEFAULT_CACHE_TILES = 256;
+
+    /**
+     * The layout of the work file: a header, the row interchanges as ints
+     * and then the tiles, row of tiles by row of tiles, starting on a page
+     * boundary.
+     */
+    private static final byte[] MAGIC = "LUTILES1".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int PAGE = 4096;
+
+    /**
+     * The largest region of the work file mapped as one buffer.
+     */
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    /**
+     * The dimension of the matrix, the tile size, the number of tiles in
+     * each row and column of tiles, and the padded dimension nt*T.
+     */
+    private final int n, T, nt, nPad;
+
+    /**
+     * Row j was swapped with row piv[j] at step j.
+     */
+    private final int[] piv;
+
+    /**
+     * 1 or -1, the sign due to the row interchanges.
+     */
+    private final double sign;
+
+    /**
+     * The mapped tiles, tilesPerChunk to a buffer.
+     */
+    private final DoubleBuffer[] chunks;
+    private final int tilesPerChunk;
+
+    private OutOfCoreLU(int n, int T, int[] piv, double sign, DoubleBuffer[] chunks) {
+        this.n = n;
+        this.T = T;
+        this.nt = (n + T - 1)/T;
+        this.nPad = nt*T;
+        this.piv = piv;
+        this.sign = sign;
+        this.chunks = chunks;
+        this.tilesPerChunk = tilesPerChunk(T);
+    }
+
+    private static int tilesPerChunk(int T) {
+        return (int) Math.max(1, MAX_CHUNK_BYTES/(8L*T*T));
+    }
+
+    /**
+     * Returns the offset of the first tile in the work file.
+     */
+    private static long dataStart(int nPad) {
+        return (HEADER_BYTES + 4L*nPad + PAGE - 1)/PAGE*PAGE;
+    }
+
+    /**
+     * A tile held in the cache.
+     */
+    private static final class Tile {
+        final double[] a;
+        boolean dirty;
+
+        Tile(double[] a) {
+            this.a = a;
+        }
+    }
+
+    /**
+     * A cache of at most capacity tiles which evicts the least recently
+     * used, writing it back to the mapping if it has changed. The buffer of
+     * an evicted tile is reused for the next tile loaded. Since the two
+     * most recently used tiles are never evicted, a caller may work on two
+     * tiles at once.
+     */
+    private static final class TileCache {
+        private final DoubleBuffer[] chunks;
+        private final int tilesPerChunk, size;
+        private double[] free;
+        private final LinkedHashMap<Integer, Tile> tiles;
+
+        TileCache(DoubleBuffer[] chunks, int tilesPerChunk, int T, int capacity) {
+            this.chunks = chunks;
+            this.tilesPerChunk = tilesPerChunk;
+            this.size = T*T;
+            this.tiles = new LinkedHashMap<>(2*capacity, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Tile> e) {
+                    if (size() <= capacity)
+                        return false;
+                    writeBack(e.getKey(), e.getValue());
+                    free = e.getValue().a;
+                    return true;
+                }
+            };
+        }
+
+        Tile get(int index) {
+            Tile t = tiles.get(index);
+            if (t == null) {
+                double[] a = free != null ? free : new double[size];
+                free = null;
+                chunks[index/tilesPerChunk].get((index % tilesPerChunk)*size, a, 0, size);
+                t = new Tile(a);
+                tiles.put(index, t);
+            }
+            return t;
+        }
+
+        private void writeBack(int index, Tile t) {
+            if (t.dirty) {
+                chunks[index/tilesPerChunk].put((index % tilesPerChunk)*size, t.a, 0, size);
+                t.dirty = false;
+            }
+        }
+
+        void flush() {
+            for (Map.Entry<Integer, Tile> e : tiles.entrySet())
+                writeBack(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Factorises a matrix held in a dense row-major MatrixIO file, which is
+     * mapped rather than read, so it may also be larger than memory.
+     *
+     * @param source      The file holding the matrix.
+     * @param work        The work file, replaced if it exists, which will
+     *                    hold the factors.
+     * @param tileSize    The tile size T.
+     * @param cacheTiles  The number of tiles to cache on the heap, at least 2.
+     * @return            The decomposition.
+     */
+    public static OutOfCoreLU factor(Path source, Path work, int tileSize, int cacheTiles)
+        throws IOException {
+        return factor(MatrixIO.map(source, false, false), work, tileSize, cacheTiles);
+    }
+
+    /**
+     * Factorises a matrix with the default tile size and cache.
+     *
+     * @param A     The square matrix to factorise. It is not modified.
+     * @param work  The work file, replaced if it exists, which will hold
+     *              the factors.
+     * @return      The decomposition.
+     */
+    public static OutOfCoreLU factor(Matrix A, Path work) throws IOException {
+        return factor(A, work, DEFAULT_TILE_SIZE, DEFAULT_CACHE_TILES);
+    }
+
+    /**
+     * Factorises a matrix as described above. A is typically an
+     * OffHeapMatrix mapped from a file, and is read one row at a time.
+     *
+     * @param A           The square matrix to factorise. It is not modified.
+     * @param work        The work file, replaced if it exists, which will
+     *                    hold the factors.
+     * @param tileSize    The tile size T.
+     * @param cacheTiles  The number of tiles to cache on the heap, at least 2.
+     * @return            The decomposition.
+     */
+    public static OutOfCoreLU factor(Matrix A, Path work, int tileSize, int cacheTiles)
+        throws IOException {
+        if (A.m != A.n)
+            throw new MatrixException("Matrix is not square");
+        if (tileSize < 1 || tileSize > 4096)
+            throw new MatrixException("Tile size must be between 1 and 4096");
+        if (cacheTiles < 2)
+            throw new MatrixException("The cache must hold at least 2 tiles");
+        int n = A.n, T = tileSize, nt = (n + T - 1)/T, nPad = nt*T;
+        if ((long) nt*nt > Integer.MAX_VALUE)
+            throw new MatrixException("Tile size is too small for this matrix");
+        long start = dataStart(nPad);
+
+        try (FileChannel ch = FileChannel.open(work, StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE)) {
+            // Write an incomplete header first, so that a file left by a
+            // failed factorisation cannot be opened.
+            writeHeader(ch, n, T, 0.0, false);
+            DoubleBuffer[] chunks = mapTiles(ch, FileChannel.MapMode.READ_WRITE, start, nt, T);
+            copyIn(A, chunks, tilesPerChunk(T), T, nt);
+
+            int[] piv = new int[nPad];
+            double sign = factorTiles(chunks, tilesPerChunk(T), T, nt, piv, cacheTiles);
+
+            ByteBuffer p = ByteBuffer.allocate(4*nPad).order(ByteOrder.LITTLE_ENDIAN);
+            p.asIntBuffer().put(piv);
+            for (long pos = HEADER_BYTES; p.hasRemaining(); )
+                pos += ch.write(p, pos);
+            writeHeader(ch, n, T, sign, true);
+            return new OutOfCoreLU(n, T, piv, sign, chunks);
+        }
+    }
+
+    /**
+     * Opens the decomposition left in a work file by factor().
+     *
+     * @param work  The work file.
+     * @return      The decomposition, reading the tiles from the file.
+     */
+    public static OutOfCoreLU open(Path work) throws IOException {
+        try (FileChannel ch = FileChannel.open(work, StandardOpenOption.READ)) {
+            ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (ch.size() < HEADER_BYTES)
+                throw new MatrixException("Not a factor file");
+            while (h.hasRemaining())
+                ch.read(h, h.position());
+            h.flip();
+            for (byte c : MAGIC)
+                if (h.get() != c)
+                    throw new MatrixException("Not a factor file");
+            if (h.getInt() != VERSION)
+                throw new MatrixException("Unsupported factor file version");
+            int T = h.getInt();
+            long n = h.getLong();
+            double sign = h.getDouble();
+            if (h.getInt() != 1)
+                throw new MatrixException("The factorisation did not complete");
+            if (T < 1 || T > 4096 || n < 1 || n > Integer.MAX_VALUE)
+                throw new MatrixException("Not a factor file");
+            int nt = (int) ((n + T - 1)/T), nPad = nt*T;
+            long start = dataStart(nPad);
+            if (ch.size() < start + 8L*nPad*nPad)
+                throw new MatrixException("Factor file is truncated");
+
+            ByteBuffer p = ByteBuffer.allocate(4*nPad).order(ByteOrder.LITTLE_ENDIAN);
+            for (long pos = HEADER_BYTES; p.hasRemaining(); )
+                pos += ch.read(p, pos);
+            p.flip();
+            int[] piv = new int[nPad];
+            p.asIntBuffer().get(piv);
+            DoubleBuffer[] chunks = mapTiles(ch, FileChannel.MapMode.READ_ONLY, start, nt, T);
+            return new OutOfCoreLU((int) n, T, piv, sign, chunks);
+        }
+    }
+
+    private static void writeHeader(FileChannel ch, int n, int T, double sign, boolean complete)
+        throws IOException {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        h.put(MAGIC);
+        h.putInt(VERSION);
+        h.putInt(T);
+        h.putLong(n);
+        h.putDouble(sign);
+        h.putInt(complete ? 1 : 0);
+        h.position(HEADER_BYTES);
+        h.flip();
+        for (long pos = 0; h.hasRemaining(); )
+            pos += ch.write(h, pos);
+    }
+
+    /**
+     * Maps the nt*nt tiles starting at start, as little-endian doubles.
+     */
+    private static DoubleBuffer[] mapTiles(FileChannel ch, FileChannel.MapMode mode, long start,
+                                           int nt, int T) throws IOException {
+        long tileBytes = 8L*T*T, tiles = (long) nt*nt;
+        int per = tilesPerChunk(T);
+        DoubleBuffer[] chunks = new DoubleBuffer[(int) ((tiles + per - 1)/per)];
+        for (int k = 0; k < chunks.length; k++) {
+            long count = Math.min(per, tiles - (long) k*per);
+            chunks[k] = ch.map(mode, start + (long) k*per*tileBytes, count*tileBytes)
+                          .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+        return chunks;
+    }
+
+    /**
+     * Copies A into the tiles a row at a time, putting ones on the padded
+     * part of the diagonal. The new file is all zeros, so nothing else
+     * needs writing. As in GeneralMatrix.decomp, a row of zeros is reported
+     * as a singular matrix.
+     */
+    private static void copyIn(Matrix A, DoubleBuffer[] chunks, int per, int T, int nt) {
+        int n = A.n, size = T*T;
+        double[] row = new double[n];
+        for (int i = 0; i < nt*T; i++) {
+            int I = i/T, r = i % T;
+            if (i >= n) {
+                int t = I*nt + I;
+                chunks[t/per].put((t % per)*size + r*T + r, 1.0);
+                continue;
+            }
+            A.getRow(i, 0, row, 0, n);
+            double big = 0.0;
+            for (int j = 0; j < n; j++)
+                big = Math.max(big, Math.abs(row[j]));
+            if (big == 0.0)
+                throw new MatrixException("Matrix is singular");
+            for (int J = 0; J < nt; J++) {
+                int t = I*nt + J, len = Math.min(T, n - J*T);
+                chunks[t/per].put((t % per)*size + r*T, row, J*T, len);
+            }
+        }
+    }
+
+    /**
+     * The tiled factorisation described above.
+     *
+     * @return 1 or -1, the sign due to the row interchanges.
+     */
+    private static double factorTiles(DoubleBuffer[] chunks, int per, int T, int nt, int[] piv,
+                                      int cacheTiles) {
+        TileCache cache = new TileCache(chunks, per, T, cacheTiles);
+        ForkJoinPool pool = T < DenseLU.getParallelThreshold() ? null : DenseLU.pool();
+        int size = T*T;
+        double[] panel = new double[nt*size], u = new double[size], t1 = new double[T];
+        double sign = 1.0;
+
+        for (int k = 0; k < nt; k++) {
+            int rows = (nt - k)*T;
+            for (int I = k; I < nt; I++)
+                System.arraycopy(cache.get(I*nt + k).a, 0, panel, (I-k)*size, size);
+            sign *= OffHeapMatrix.factorPanel(panel, rows, T, piv, k*T, pool);
+            for (int I = k; I < nt; I++) {
+                Tile t = cache.get(I*nt + k);
+                System.arraycopy(panel, (I-k)*size, t.a, 0, size);
+                t.dirty = true;
+            }
+
+            for (int J = k+1; J < nt; J++) {
+                // Apply the panel's interchanges to tile column J.
+                for (int j = 0; j < T; j++) {
+                    int p = piv[k*T + j] - k*T;
+                    if (p == j)
+                        continue;
+                    Tile a = cache.get(k*nt + J), b = cache.get((k + p/T)*nt + J);
+                    Kernels.swap(T, a.a, j*T, b.a, (p % T)*T);
+                    a.dirty = b.dirty = true;
+                }
+
+                // U(k,J) = inv(L(k,k))*A(k,J).
+                Tile ukj = cache.get(k*nt + J);
+                for (int j = 0; j < T; j++)
+                    for (int i = j+1; i < T; i++)
+                        Kernels.axpy(T, -panel[i*T+j], ukj.a, j*T, ukj.a, i*T);
+                ukj.dirty = true;
+                System.arraycopy(ukj.a, 0, u, 0, size);
+
+                // A(I,J) -= L(I,k)*U(k,J).
+                for (int I = k+1; I < nt; I++) {
+                    Tile c = cache.get(I*nt + J);
+                    Gemm.multiply(T, T, T, -1.0, panel, (I-k)*size, T, u, 0, T, c.a, 0, T, pool);
+                    c.dirty = true;
+                }
+            }
+        }
+        cache.flush();
+        return sign;
+    }
+
+    /**
+     * Copies tile (I,J) into a.
+     */
+    private void readTile(int I, int J, double[] a) {
+        int t = I*nt + J, size = T*T;
+        chunks[t/tilesPerChunk].get((t % tilesPerChunk)*size, a, 0, size);
+    }
+
+    /**
+     * @return The dimension of the matrix.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return The tile size.
+     */
+    public int tileSize() {
+        return T;
+    }
+
+    /**
+     * Return the determinant of the matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow. Reads only the diagonal tiles.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        ScaledDeterminant.Accumulator result = new ScaledDeterminant.Accumulator(sign);
+        int size = T*T;
+        for (int K = 0; K < nt; K++) {
+            int t = K*nt + K;
+            DoubleBuffer c = chunks[t/tilesPerChunk];
+            for (int i = 0; i < T && K*T + i < n; i++)
+                result.multiply(c.get((t % tilesPerChunk)*size + i*T + i));
+        }
+        return result.result();
+    }
+
+    /**
+     * Return the determinant of the matrix.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        return scaledDeterminant().doubleValue();
+    }
+
+    /**
+     * Return the natural logarithm of the absolute value of the
+     * determinant.
+     *
+     * @return log|det(A)|.
+     */
+    public double logDeterminant() {
+        return scaledDeterminant().logAbs();
+    }
+
+    /**
+     * Solves Ax = b, reading each tile of the factors once in each
+     * direction. For each panel the interchanges are applied to b before
+     * the forward substitution with its columns of L.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        if (b.length != n)
+            throw new MatrixException("Right-hand side has the wrong length");
+        double[] x = new double[nPad], tile = new double[T*T];
+        System.arraycopy(b, 0, x, 0, n);
+
+        for (int k = 0; k < nt; k++) {
+            int k0 = k*T;
+            for (int j = k0; j < k0 + T; j++) {
+                int p = piv[j];
+                if (p != j) {
+                    double s = x[j];
+                    x[j] = x[p];
+                    x[p] = s;
+                }
+            }
+            readTile(k, k, tile);
+            for (int i = 1; i < T; i++)
+                x[k0+i] -= Kernels.dot(tile, i*T, x, k0, i);
+            for (int I = k+1; I < nt; I++) {
+                readTile(I, k, tile);
+                for (int i = 0; i < T; i++)
+                    x[I*T+i] -= Kernels.dot(tile, i*T, x, k0, T);
+            }
+        }
+
+        for (int K = nt-1; K >= 0; K--) {
+            int k0 = K*T;
+            for (int J = K+1; J < nt; J++) {
+                readTile(K, J, tile);
+                for (int i = 0; i < T; i++)
+                    x[k0+i] -= Kernels.dot(tile, i*T, x, J*T, T);
+            }
+            readTile(K, K, tile);
+            for (int i = T-1; i >= 0; i--) {
+                double s = x[k0+i] - Kernels.dot(tile, i*T+i+1, x, k0+i+1, T-i-1);
+                x[k0+i] = s/tile[i*T+i];
+            }
+        }
+        return x.length == n ? x : Arrays.copyOf(x, n);
+    }
+
+    /*
+     * Main function with some manual tests: factorises a random matrix out
+     * of core with a small cache and compares it with GeneralMatrix.
+     */
+    public static void main(String[] args) throws IOException {
+        int N = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        Path dir = Path.of(System.getProperty("java.io.tmpdir"));
+        Path source = dir.resolve("ooc-source.bin"), work = dir.resolve("ooc-work.bin");
+        GeneralMatrix g = new GeneralMatrix(N, N);
+        g.random(RandomFill.create(1));
+        MatrixIO.write(g, source);
+
+        long t0 = System.nanoTime();
+        OutOfCoreLU lu = factor(source, work, 128, 16);
+        long t1 = System.nanoTime();
+        System.out.println("Out-of-core determinant: " + lu.scaledDeterminant()
+                           + " in " + (t1-t0)/1e6 + " ms");
+        System.out.println("In-memory determinant:   "
+                           + g.scaledDeterminant(GeneralMatrix.Algorithm.BLOCKED,
+                                                 new LUWorkspace(N)));
+
+        double[] b = new double[N];
+        RandomFill.fill(b, 0, N, RandomFill.create(2));
+        double[] x = open(work).solve(b);
+        double r = 0.0;
+        for (int i = 0; i < N; i++) {
+            double s = -b[i];
+            for (int j = 0; j < N; j++)
+                s += g.getIJ(i, j)*x[j];
+            r = Math.max(r, Math.abs(s));
+        }
+        System.out.println("Residual: " + r);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This class provides the random numbers used to fill matrices.
+ *
+ * Creating a java.util.Random for every call to random() is slow: each one
+ * has to be seeded, and its seed is an AtomicLong updated with a
+ * compare-and-set for every number drawn. Instead every thread keeps its
+ * own L64X128MixRandom generator, split off a shared root, so drawing a
+ * number is a few arithmetic instructions with no synchronisation. The
+ * root can be reseeded to make runs reproducible, and callers which manage
+ * their own threads can split off independent streams explicitly.
+ */
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+import java.util.random.RandomGenerator.SplittableGenerator;
+import java.util.random.RandomGeneratorFactory;
+
+public class RandomFill {
+    /**
+     * The generator algorithm used, if the JDK provides it.
+     */
+    public static final String ALGORITHM = "L64X128MixRandom";
+
+    /**
+     * The root generator from which the per-thread generators are split.
+     */
+    private static SplittableGenerator root = create(System.nanoTime());
+
+    /**
+     * Incremented whenever the root is reseeded, so that each thread knows
+     * to split a new generator off the new root.
+     */
+    private static volatile int epoch;
+
+    /**
+     * The generator for the current thread, tagged with the epoch of the
+     * root it was split from.
+     */
+    private static final ThreadLocal<Stream> CURRENT = new ThreadLocal<>();
+
+    private static class Stream {
+        final int epoch;
+        final SplittableGenerator rng;
+
+        Stream(int epoch, SplittableGenerator rng) {
+            this.epoch = epoch;
+            this.rng = rng;
+        }
+    }
+
+    private RandomFill() {}
+
+    /**
+     * Creates a new generator with the given seed. This is L64X128MixRandom
+     * when available, and SplittableRandom otherwise.
+     *
+     * @param seed  The seed.
+     * @return      A new splittable generator.
+     */
+    public static SplittableGenerator create(long seed) {
+        try {
+            return RandomGeneratorFactory.<SplittableGenerator>of(ALGORITHM).create(seed);
+        } catch (IllegalArgumentException e) {
+            return new SplittableRandom(seed);
+        }
+    }
+
+    /**
+     * Reseeds the root generator. Every thread's next call to current()
+     * returns a generator split from the new root, so a single-threaded
+     * program which sets the seed produces the same matrices every run.
+     *
+     * @param seed  The new seed.
+     */
+    public static synchronized void setSeed(long seed) {
+        root = create(seed);
+        epoch++;
+    }
+
+    /**
+     * Splits a new independent generator off the root, for a thread or task
+     * which wants its own stream.
+     *
+     * @return A new generator.
+     */
+    public static synchronized SplittableGenerator split() {
+        return root.split();
+    }
+
+    /**
+     * Returns the generator for the current thread. It must not be passed
+     * to other threads.
+     *
+     * @return The current thread's generator.
+     */
+    public static RandomGenerator current() {
+        Stream s = CURRENT.get();
+        if (s == null || s.epoch != epoch) {
+            synchronized (RandomFill.class) {
+                s = new Stream(epoch, root.split());
+            }
+            CURRENT.set(s);
+        }
+        return s.rng;
+    }
+
+    /**
+     * Fills a[off..off+len) with numbers uniformly distributed between 0
+     * and 1.
+     *
+     * @param a    The array to fill.
+     * @param off  The first index to fill.
+     * @param len  The number of entries to fill.
+     * @param rng  The source of random numbers.
+     */
+    public static void fill(double[] a, int off, int len, RandomGenerator rng) {
+        for (int i = off; i < off + len; i++)
+            a[i] = rng.nextDouble();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * This class accumulates the count, mean, variance, skewness, kurtosis,
+ * minimum and maximum of a stream of values in O(1) memory.
+ *
+ * The naive formula var = E[X^2] - E[X]^2 subtracts two nearly equal large
+ * numbers whenever the mean is large compared to the spread, and loses
+ * most of its significant digits. Instead the central moments are updated
+ * one value at a time with Welford's method, extended to the third and
+ * fourth moments, and two accumulators are combined with the pairwise
+ * formulas of Chan et al. and Pebay. Both are stable, so the statistics can
+ * be computed per thread and merged at the end.
+ *
+ * An optional Histogram can be attached to also keep an approximation of
+ * the whole distribution.
+ */
+
+public class RunningStatistics {
+    /**
+     * The number of values seen.
+     */
+    private long n;
+
+    /**
+     * The running mean, and the sums of the second, third and fourth powers
+     * of the deviations from it.
+     */
+    private double mean, m2, m3, m4;
+
+    /**
+     * The smallest and largest values seen.
+     */
+    private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * If not null, every value is also added to this histogram.
+     */
+    private final Histogram histogram;
+
+    /**
+     * Constructor function for an empty accumulator with no histogram.
+     */
+    public RunningStatistics() {
+        this(null);
+    }
+
+    /**
+     * Constructor function for an empty accumulator which also records the
+     * values in a histogram.
+     *
+     * @param histogram  The histogram to add every value to, or null.
+     */
+    public RunningStatistics(Histogram histogram) {
+        this.histogram = histogram;
+    }
+
+    /**
+     * Returns a new empty accumulator with the same configuration as this
+     * one, including an empty histogram with the same bins. Used to create
+     * the per-thread accumulators which are later merged into this one.
+     *
+     * @return An empty accumulator.
+     */
+    public RunningStatistics emptyCopy() {
+        return new RunningStatistics(histogram == null ? null : histogram.emptyCopy());
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @param x  The value to add.
+     */
+    public void add(double x) {
+        long n1 = n;
+        n++;
+        double delta   = x - mean;
+        double deltaN  = delta/n;
+        double deltaN2 = deltaN*deltaN;
+        double term1   = delta*deltaN*n1;
+        mean += deltaN;
+        m4 += term1*deltaN2*((double) n*n - 3.0*n + 3.0) + 6.0*deltaN2*m2 - 4.0*deltaN*m3;
+        m3 += term1*deltaN*(n - 2.0) - 3.0*deltaN*m2;
+        m2 += term1;
+        if (x < min)
+            min = x;
+        if (x > max)
+            max = x;
+        if (histogram != null)
+            histogram.add(x);
+    }
+
+    /**
+     * Merges the values seen by another accumulator into this one. The
+     * result is the same, up to rounding, as if every value had been added
+     * to this accumulator.
+     *
+     * @param o  The accumulator to merge in. It is not modified.
+     * @return   This accumulator.
+     */
+    public RunningStatistics merge(RunningStatistics o) {
+        if (o.n == 0)
+            return this;
+        if (n == 0) {
+            n = o.n; mean = o.mean; m2 = o.m2; m3 = o.m3; m4 = o.m4;
+            min = o.min; max = o.max;
+        } else {
+            double na = n, nb = o.n, nt = na + nb;
+            double delta  = o.mean - mean;
+            double delta2 = delta*delta;
+            double newM4 = m4 + o.m4
+                + delta2*delta2*na*nb*(na*na - na*nb + nb*nb)/(nt*nt*nt)
+                + 6.0*delta2*(na*na*o.m2 + nb*nb*m2)/(nt*nt)
+                + 4.0*delta*(na*o.m3 - nb*m3)/nt;
+            double newM3 = m3 + o.m3
+                + delta2*delta*na*nb*(na - nb)/(nt*nt)
+                + 3.0*delta*(na*o.m2 - nb*m2)/nt;
+            m2 += o.m2 + delta2*na*nb/nt;
+            m3 = newM3;
+            m4 = newM4;
+            mean += delta*nb/nt;
+            n += o.n;
+            min = Math.min(min, o.min);
+            max = Math.max(max, o.max);
+        }
+        if (histogram != null && o.histogram != null)
+            histogram.merge(o.histogram);
+        return this;
+    }
+
+    /**
+     * @return The number of values seen.
+     */
+    public long count() {
+        return n;
+    }
+
+    /**
+     * @return The mean of the values seen.
+     */
+    public double mean() {
+        return n == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     * @return The population variance, i.e. the mean squared deviation
+     *         from the mean. This is what matVariance reports.
+     */
+    public double variance() {
+        return n == 0 ? Double.NaN : m2/n;
+    }
+
+    /**
+     * @return The unbiased sample variance, dividing by n-1.
+     */
+    public double sampleVariance() {
+        return n < 2 ? Double.NaN : m2/(n - 1);
+    }
+
+    /**
+     * @return The population skewness.
+     */
+    public double skewness() {
+        return Math.sqrt((double) n)*m3/Math.pow(m2, 1.5);
+    }
+
+    /**
+     * @return The population excess kurtosis, which is zero for a normal
+     *         distribution.
+     */
+    public double kurtosis() {
+        return n*m4/(m2*m2) - 3.0;
+    }
+
+    /**
+     * @return The smallest value seen.
+     */
+    public double min() {
+        return n == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * @return The largest value seen.
+     */
+    public double max() {
+        return n == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * @return The attached histogram, or null if there is none.
+     */
+    public Histogram histogram() {
+        return histogram;
+    }
+
+    /**
+     * Returns a one-line summary of the statistics.
+     *
+     * @return A String representation of the statistics.
+     */
+    public String toString() {
+        return "n=" + n + " mean=" + mean() + " var=" + variance()
+            + " skew=" + skewness() + " kurt=" + kurtosis()
+            + " min=" + min() + " max=" + max();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * This class represents a determinant as mantissa * 2^exponent, with the
+ * mantissa kept in [0.5, 1) in absolute value and the exponent held in a
+ * long. The determinant of a large matrix is a product of n pivots, which
+ * easily leaves the range of a double (about 10^-308 to 10^308) even when
+ * every pivot is of a sensible size. Renormalising the running product
+ * after each multiplication keeps it in range, so the exact sign and
+ * log|det| are always available.
+ */
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Locale;
+
+public class ScaledDeterminant {
+    private static final double LN2 = Math.log(2.0);
+    private static final double LOG10_2 = Math.log10(2.0);
+
+    /**
+     * log10(2) to enough digits that exponent * log10(2) keeps its
+     * fractional part exact to double precision for any long exponent.
+     */
+    private static final BigDecimal LOG10_2_EXACT =
+        new BigDecimal("0.30102999566398119521373889472449302676818988146211");
+
+    private static final MathContext DIGITS = new MathContext(15);
+
+    /**
+     * The mantissa, either zero or in [0.5, 1) in absolute value.
+     */
+    private final double mantissa;
+
+    /**
+     * The power of two multiplying the mantissa.
+     */
+    private final long exponent;
+
+    private ScaledDeterminant(double mantissa, long exponent) {
+        this.mantissa = mantissa;
+        this.exponent = exponent;
+    }
+
+    /**
+     * Returns the scaled form of an ordinary double.
+     *
+     * @param x  The value.
+     * @return   x in scaled form.
+     */
+    public static ScaledDeterminant of(double x) {
+        return product(new double[] {x}, 0, 1, 1, 1.0);
+    }
+
+    /**
+     * Returns the scaled form of sign * a[off] * a[off+step] * ... taking
+     * count factors. This is used to multiply the diagonal of a packed LU
+     * decomposition, where step is the row stride plus one.
+     *
+     * @param a      The array holding the factors.
+     * @param off    The index of the first factor.
+     * @param step   The distance between factors.
+     * @param count  The number of factors.
+     * @param sign   1 or -1, the sign due to row interchanges.
+     * @return       The product in scaled form.
+     */
+    public static ScaledDeterminant product(double[] a, int off, int step, int count, double sign) {
+        Accumulator acc = new Accumulator(sign);
+        for (int i = 0; i < count; i++)
+            acc.multiply(a[off + i*step]);
+        return acc.result();
+    }
+
+    /**
+     * A running product which renormalises after each factor. Used by
+     * routines which produce their pivots one at a time.
+     */
+    static class Accumulator {
+        private double m;
+        private long e;
+
+        Accumulator(double sign) {
+            m = sign;
+        }
+
+        void multiply(double x) {
+            m *= x;
+            if (m == 0.0 || Double.isNaN(m) || Double.isInfinite(m))
+                return;
+            if (Math.getExponent(m) < Double.MIN_EXPONENT) {
+                m = Math.scalb(m, 64);
+                e -= 64;
+            }
+            int k = Math.getExponent(m) + 1;
+            if (k != 0) {
+                m = Math.scalb(m, -k);
+                e += k;
+            }
+        }
+
+        void multiplyPow2(long k) {
+            if (m != 0.0)
+                e += k;
+        }
+
+        ScaledDeterminant result() {
+            return new ScaledDeterminant(m, m == 0.0 ? 0 : e);
+        }
+    }
+
+    /**
+     * @return The mantissa, zero or in [0.5, 1) in absolute value.
+     */
+    public double mantissa() {
+        return mantissa;
+    }
+
+    /**
+     * @return The power of two multiplying the mantissa.
+     */
+    public long exponent() {
+        return exponent;
+    }
+
+    /**
+     * @return 1, -1 or 0 according to the sign of the determinant.
+     */
+    public double sign() {
+        return Math.signum(mantissa);
+    }
+
+    /**
+     * @return The natural logarithm of the absolute value of the
+     *         determinant, or -Infinity if it is zero.
+     */
+    public double logAbs() {
+        return Math.log(Math.abs(mantissa)) + exponent*LN2;
+    }
+
+    /**
+     * @return The base 10 logarithm of the absolute value of the
+     *         determinant, or -Infinity if it is zero.
+     */
+    public double log10Abs() {
+        return Math.log10(Math.abs(mantissa)) + exponent*LOG10_2;
+    }
+
+    /**
+     * @return The determinant as a double. This underflows to 0 or
+     *         overflows to Infinity if it is out of range.
+     */
+    public double doubleValue() {
+        if (exponent > Integer.MAX_VALUE)
+            return mantissa*Double.POSITIVE_INFINITY;
+        if (exponent < Integer.MIN_VALUE)
+            return mantissa*0.0;
+        return Math.scalb(mantissa, (int) exponent);
+    }
+
+    /**
+     * Returns the determinant in decimal scientific notation with 15
+     * significant digits, which works whatever its size, e.g.
+     * "-3.14159265358979E-5012". The decimal exponent is split from the
+     * binary one in extended precision so that the digits stay accurate
+     * when the exponent is large.
+     *
+     * @return A String representation of the determinant.
+     */
+    public String toString() {
+        if (mantissa == 0.0 || Double.isNaN(mantissa) || Double.isInfinite(mantissa))
+            return Double.toString(mantissa);
+        BigDecimal t = LOG10_2_EXACT.multiply(BigDecimal.valueOf(exponent));
+        BigDecimal floor = t.setScale(0, RoundingMode.FLOOR);
+        long e10 = floor.longValueExact();
+        double m10 = Math.abs(mantissa) * Math.pow(10.0, t.subtract(floor).doubleValue());
+        if (m10 < 1.0) {
+            m10 *= 10.0;
+            e10--;
+        }
+        BigDecimal digits = new BigDecimal(m10).round(DIGITS);
+        if (digits.compareTo(BigDecimal.TEN) >= 0) {
+            digits = digits.movePointLeft(1);
+            e10++;
+        }
+        return String.format(Locale.ROOT, "%s%.15gE%d", mantissa < 0 ? "-" : "", digits, e10);
+    }
+}
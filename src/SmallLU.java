@@ -0,0 +1,318 @@
+/*
+ * This class contains the kernels GeneralMatrix uses for matrices of
+ * dimension up to MAX_SIZE, where the general routines spend more time on
+ * setting up (copying into a workspace, the implicit scaling of Crout's
+ * method, loops with a handful of iterations) than on arithmetic.
+ *
+ *  - The determinants of 2x2 and 3x3 matrices use the closed forms, and
+ *    that of a 4x4 matrix one pivoted elimination step and then the 3x3
+ *    closed form, all in local variables.
+ *  - Larger determinants use Gaussian elimination with partial pivoting
+ *    on a copy in a per-thread scratch array, and the LU decomposition the
+ *    same elimination in place, so neither allocates. Each size has its
+ *    own entry point which passes the size as a constant, giving the JIT
+ *    loops with known trip counts.
+ *  - Products of 2x2, 3x3 and 4x4 matrices are written out in full.
+ *
+ * As in DenseLU, a matrix with a row of zeros is reported as singular, so
+ * that the small sizes agree with the general routines on which matrices
+ * throw. A zero pivot otherwise gives a determinant of exactly 0.
+ */
+
+class SmallLU {
+    /**
+     * The largest dimension handled here.
+     */
+    static final int MAX_SIZE = 8;
+
+    /**
+     * The largest dimension of the written-out matrix products.
+     */
+    static final int MAX_MULTIPLY_SIZE = 4;
+
+    /**
+     * The scratch array for the determinants, one for each thread.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+        ThreadLocal.withInitial(() -> new double[MAX_SIZE*MAX_SIZE]);
+
+    private SmallLU() {}
+
+    /**
+     * Returns the determinant of the n x n matrix at a[off + i*lda + j],
+     * which is not modified. A row of zeros makes the determinant exactly
+     * 0, so the rows are only checked when it is.
+     *
+     * @param n  The dimension, between 1 and MAX_SIZE.
+     */
+    static double determinant(double[] a, int off, int lda, int n) {
+        double det;
+        switch (n) {
+            case 1:
+                det = a[off];
+                break;
+            case 2:
+                det = a[off]*a[off+lda+1] - a[off+1]*a[off+lda];
+                break;
+            case 3:
+                det = det3(a, off, lda);
+                break;
+            case 4:
+                det = det4(a, off, lda);
+                break;
+            case 5:
+                det = eliminate(a, off, lda, 5);
+                break;
+            case 6:
+                det = eliminate(a, off, lda, 6);
+                break;
+            case 7:
+                det = eliminate(a, off, lda, 7);
+                break;
+            case 8:
+                det = eliminate(a, off, lda, 8);
+                break;
+            default:
+                throw new MatrixException("Matrix is too large for SmallLU");
+        }
+        if (det == 0.0)
+            DenseLU.checkRows(a, off, lda, n, null);
+        return det;
+    }
+
+    /**
+     * The 3x3 determinant expanded along the first row.
+     */
+    private static double det3(double[] a, int off, int lda) {
+        int r1 = off + lda, r2 = off + 2*lda;
+        double a00 = a[off], a01 = a[off+1], a02 = a[off+2];
+        double a10 = a[r1],  a11 = a[r1+1],  a12 = a[r1+2];
+        double a20 = a[r2],  a21 = a[r2+1],  a22 = a[r2+2];
+        return a00*(a11*a22 - a12*a21)
+             - a01*(a10*a22 - a12*a20)
+             + a02*(a10*a21 - a11*a20);
+    }
+
+    /**
+     * The 4x4 determinant: one step of elimination with partial pivoting,
+     * done by permuting the row offsets rather than the entries, leaves a
+     * 3x3 Schur complement whose determinant is found in closed form.
+     */
+    private static double det4(double[] a, int off, int lda) {
+        int r0 = off, r1 = off + lda, r2 = off + 2*lda, r3 = off + 3*lda;
+        int p = r0;
+        double big = Math.abs(a[r0]), t;
+        if ((t = Math.abs(a[r1])) > big) {
+            big = t;
+            p = r1;
+        }
+        if ((t = Math.abs(a[r2])) > big) {
+            big = t;
+            p = r2;
+        }
+        if (Math.abs(a[r3]) > big)
+            p = r3;
+        double sign = 1.0;
+        if (p != r0) {
+            if (p == r1)
+                r1 = r0;
+            else if (p == r2)
+                r2 = r0;
+            else
+                r3 = r0;
+            r0 = p;
+            sign = -1.0;
+        }
+        double pivot = a[r0];
+        if (pivot == 0.0)
+            return 0.0;
+        double u1 = a[r0+1], u2 = a[r0+2], u3 = a[r0+3];
+        double l1 = a[r1]/pivot, l2 = a[r2]/pivot, l3 = a[r3]/pivot;
+        double s11 = a[r1+1] - l1*u1, s12 = a[r1+2] - l1*u2, s13 = a[r1+3] - l1*u3;
+        double s21 = a[r2+1] - l2*u1, s22 = a[r2+2] - l2*u2, s23 = a[r2+3] - l2*u3;
+        double s31 = a[r3+1] - l3*u1, s32 = a[r3+2] - l3*u2, s33 = a[r3+3] - l3*u3;
+        return sign*pivot*(s11*(s22*s33 - s23*s32)
+                         - s12*(s21*s33 - s23*s31)
+                         + s13*(s21*s32 - s22*s31));
+    }
+
+    /**
+     * Returns the determinant by Gaussian elimination with partial pivoting
+     * on a copy in the scratch array. N is a constant at every call site.
+     */
+    private static double eliminate(double[] a, int off, int lda, int N) {
+        double[] w = SCRATCH.get();
+        for (int i = 0; i < N; i++)
+            System.arraycopy(a, off + i*lda, w, i*N, N);
+        double det = 1.0;
+        for (int k = 0; k < N; k++) {
+            int p = k;
+            double big = Math.abs(w[k*N+k]);
+            for (int i = k+1; i < N; i++) {
+                double t = Math.abs(w[i*N+k]);
+                if (t > big) {
+                    big = t;
+                    p = i;
+                }
+            }
+            if (big == 0.0)
+                return 0.0;
+            if (p != k) {
+                for (int j = k; j < N; j++) {
+                    double t = w[k*N+j];
+                    w[k*N+j] = w[p*N+j];
+                    w[p*N+j] = t;
+                }
+                det = -det;
+            }
+            double pivot = w[k*N+k];
+            det *= pivot;
+            double inv = 1.0/pivot;
+            for (int i = k+1; i < N; i++) {
+                double l = w[i*N+k]*inv;
+                for (int j = k+1; j < N; j++)
+                    w[i*N+j] -= l*w[k*N+j];
+            }
+        }
+        return det;
+    }
+
+    /**
+     * Overwrites the n x n matrix at a[off + i*lda + j] with its packed LU
+     * decomposition, computed with partial pivoting as in DenseLU.blocked.
+     *
+     * @param n    The dimension, between 1 and MAX_SIZE.
+     * @param piv  If not null, on exit row j was swapped with row piv[j]
+     *             at step j.
+     * @return     1 or -1, the sign due to the row interchanges.
+     */
+    static double factor(double[] a, int off, int lda, int n, int[] piv) {
+        DenseLU.checkRows(a, off, lda, n, null);
+        switch (n) {
+            case 1:
+                if (piv != null)
+                    piv[0] = 0;
+                if (a[off] == 0.0)
+                    a[off] = 1.0e-20;
+                return 1.0;
+            case 2:
+                return factorN(a, off, lda, 2, piv);
+            case 3:
+                return factorN(a, off, lda, 3, piv);
+            case 4:
+                return factorN(a, off, lda, 4, piv);
+            case 5:
+                return factorN(a, off, lda, 5, piv);
+            case 6:
+                return factorN(a, off, lda, 6, piv);
+            case 7:
+                return factorN(a, off, lda, 7, piv);
+            case 8:
+                return factorN(a, off, lda, 8, piv);
+            default:
+                throw new MatrixException("Matrix is too large for SmallLU");
+        }
+    }
+
+    /**
+     * The elimination behind factor(), in place with a constant N. A zero
+     * pivot is replaced by 1e-20 as in DenseLU.
+     */
+    private static double factorN(double[] a, int off, int lda, int N, int[] piv) {
+        double sign = 1.0;
+        for (int k = 0; k < N; k++) {
+            int p = k;
+            double big = Math.abs(a[off + k*lda + k]);
+            for (int i = k+1; i < N; i++) {
+                double t = Math.abs(a[off + i*lda + k]);
+                if (t > big) {
+                    big = t;
+                    p = i;
+                }
+            }
+            if (piv != null)
+                piv[k] = p;
+            int rk = off + k*lda;
+            if (p != k) {
+                Kernels.swap(N, a, rk, a, off + p*lda);
+                sign = -sign;
+            }
+            if (a[rk+k] == 0.0)
+                a[rk+k] = 1.0e-20;
+            double inv = 1.0/a[rk+k];
+            for (int i = k+1; i < N; i++) {
+                int ri = off + i*lda;
+                double l = a[ri+k] *= inv;
+                for (int j = k+1; j < N; j++)
+                    a[ri+j] -= l*a[rk+j];
+            }
+        }
+        return sign;
+    }
+
+    /**
+     * Computes C = A*B for n x n matrices, overwriting C.
+     *
+     * @param n  The dimension, between 2 and MAX_MULTIPLY_SIZE.
+     */
+    static void multiply(int n, double[] a, int aOff, int lda, double[] b, int bOff, int ldb,
+                         double[] c, int cOff, int ldc) {
+        switch (n) {
+            case 2:
+                multiply2(a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+                break;
+            case 3:
+                multiply3(a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+                break;
+            case 4:
+                multiply4(a, aOff, lda, b, bOff, ldb, c, cOff, ldc);
+                break;
+            default:
+                throw new MatrixException("Matrix is the wrong size for SmallLU.multiply");
+        }
+    }
+
+    private static void multiply2(double[] a, int ao, int lda, double[] b, int bo, int ldb,
+                                  double[] c, int co, int ldc) {
+        double a00 = a[ao],     a01 = a[ao+1];
+        double a10 = a[ao+lda], a11 = a[ao+lda+1];
+        double b00 = b[bo],     b01 = b[bo+1];
+        double b10 = b[bo+ldb], b11 = b[bo+ldb+1];
+        c[co]       = a00*b00 + a01*b10;
+        c[co+1]     = a00*b01 + a01*b11;
+        c[co+ldc]   = a10*b00 + a11*b10;
+        c[co+ldc+1] = a10*b01 + a11*b11;
+    }
+
+    private static void multiply3(double[] a, int ao, int lda, double[] b, int bo, int ldb,
+                                  double[] c, int co, int ldc) {
+        int b1 = bo + ldb, b2 = bo + 2*ldb;
+        double b00 = b[bo], b01 = b[bo+1], b02 = b[bo+2];
+        double b10 = b[b1], b11 = b[b1+1], b12 = b[b1+2];
+        double b20 = b[b2], b21 = b[b2+1], b22 = b[b2+2];
+        for (int i = 0; i < 3; i++) {
+            int ai = ao + i*lda, ci = co + i*ldc;
+            double x = a[ai], y = a[ai+1], z = a[ai+2];
+            c[ci]   = x*b00 + y*b10 + z*b20;
+            c[ci+1] = x*b01 + y*b11 + z*b21;
+            c[ci+2] = x*b02 + y*b12 + z*b22;
+        }
+    }
+
+    private static void multiply4(double[] a, int ao, int lda, double[] b, int bo, int ldb,
+                                  double[] c, int co, int ldc) {
+        int b1 = bo + ldb, b2 = bo + 2*ldb, b3 = bo + 3*ldb;
+        double b00 = b[bo], b01 = b[bo+1], b02 = b[bo+2], b03 = b[bo+3];
+        double b10 = b[b1], b11 = b[b1+1], b12 = b[b1+2], b13 = b[b1+3];
+        double b20 = b[b2], b21 = b[b2+1], b22 = b[b2+2], b23 = b[b2+3];
+        double b30 = b[b3], b31 = b[b3+1], b32 = b[b3+2], b33 = b[b3+3];
+        for (int i = 0; i < 4; i++) {
+            int ai = ao + i*lda, ci = co + i*ldc;
+            double w = a[ai], x = a[ai+1], y = a[ai+2], z = a[ai+3];
+            c[ci]   = w*b00 + x*b10 + y*b20 + z*b30;
+            c[ci+1] = w*b01 + x*b11 + y*b21 + z*b31;
+            c[ci+2] = w*b02 + x*b12 + y*b22 + z*b32;
+            c[ci+3] = w*b03 + x*b13 + y*b23 + z*b33;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * This class computes and holds a sparse LU decomposition PAQ = LU of a
+ * square SparseMatrix, where Q is a fill-reducing column ordering chosen
+ * in advance and P is chosen by threshold partial pivoting as the
+ * factorisation goes.
+ *
+ * The factorisation is the left-looking algorithm of Gilbert and Peierls,
+ * as in CSparse's cs_lu. Column k of L and U is found by solving a sparse
+ * triangular system L x = A(:,q[k]) with the columns of L computed so far.
+ * A depth-first search through the graph of L first finds which entries of
+ * x can be non-zero, in an order in which they can be computed, so the
+ * work is proportional to the number of floating point operations rather
+ * than to n.
+ *
+ * Threshold pivoting accepts the diagonal entry of the column as pivot
+ * whenever its magnitude is at least tol times the largest candidate. With
+ * a symmetric fill-reducing ordering this keeps the pivots the ordering
+ * expected, and so the fill low, while still bounding the growth of the
+ * multipliers by 1/tol. tol = 1 is ordinary partial pivoting.
+ */
+
+import java.util.Arrays;
+
+public class SparseLU {
+    /**
+     * The dimension of the matrix.
+     */
+    private final int n;
+
+    /**
+     * L in CSC form with a unit diagonal stored first in each column, and U
+     * in CSC form with its diagonal stored last in each column. Row indices
+     * are in pivot order.
+     */
+    private final int[] Lp, Li, Up, Ui;
+    private final double[] Lx, Ux;
+
+    /**
+     * The row permutation, pinv[i] being the pivot step at which row i was
+     * chosen, and the column ordering.
+     */
+    private final int[] pinv, q;
+
+    /**
+     * The sign of the two permutations, or 0 if the matrix is singular.
+     */
+    private final double sign;
+
+    private SparseLU(int n, int[] Lp, int[] Li, double[] Lx, int[] Up, int[] Ui, double[] Ux,
+                     int[] pinv, int[] q, double sign) {
+        this.n = n;
+        this.Lp = Lp;
+        this.Li = Li;
+        this.Lx = Lx;
+        this.Up = Up;
+        this.Ui = Ui;
+        this.Ux = Ux;
+        this.pinv = pinv;
+        this.q = q;
+        this.sign = sign;
+    }
+
+    /**
+     * Factorises A. This is package-private since decompositions are
+     * created by SparseMatrix.lu().
+     *
+     * @param A    The square matrix to factorise.
+     * @param q    The column ordering: column k of AQ is column q[k] of A.
+     * @param tol  The pivot threshold.
+     * @return     The decomposition. If a column has no non-zero pivot the
+     *             factorisation stops there and the result is singular.
+     */
+    static SparseLU factor(SparseMatrix A, int[] q, double tol) {
+        int n = A.n;
+        SparseMatrix At = A.transpose();
+        int[] Ap = At.rowPtr, Ai = At.colIdx;
+        double[] Ax = At.values;
+
+        int cap = 4*Ap[n] + n;
+        int[] Lp = new int[n+1], Up = new int[n+1];
+        int[] Li = new int[cap], Ui = new int[cap];
+        double[] Lx = new double[cap], Ux = new double[cap];
+        int[] pinv = new int[n];
+        Arrays.fill(pinv, -1);
+
+        double[] x = new double[n];
+        int[] xi = new int[n], pstack = new int[n], mark = new int[n];
+        int lnz = 0, unz = 0;
+
+        for (int k = 0; k < n; k++) {
+            // Each column adds at most n entries to each factor.
+            if (lnz + n > Li.length) {
+                int size = 2*Li.length + n;
+                Li = Arrays.copyOf(Li, size);
+                Lx = Arrays.copyOf(Lx, size);
+            }
+            if (unz + n > Ui.length) {
+                int size = 2*Ui.length + n;
+                Ui = Arrays.copyOf(Ui, size);
+                Ux = Arrays.copyOf(Ux, size);
+            }
+            Lp[k] = lnz;
+            Up[k] = unz;
+
+            // Solve L x = A(:,col) for the pattern xi[top..n-1].
+            int col = q[k], stamp = k+1;
+            int top = reach(Ap, Ai, col, Lp, Li, pinv, xi, pstack, mark, stamp, n);
+            for (int p = top; p < n; p++)
+                x[xi[p]] = 0.0;
+            for (int p = Ap[col]; p < Ap[col+1]; p++)
+                x[Ai[p]] = Ax[p];
+            for (int px = top; px < n; px++) {
+                int j = xi[px], J = pinv[j];
+                if (J < 0)
+                    continue;
+                double xj = x[j];
+                for (int p = Lp[J]+1; p < Lp[J+1]; p++)
+                    x[Li[p]] -= Lx[p]*xj;
+            }
+
+            // Rows already pivoted go to U; the largest of the rest is the
+            // candidate pivot.
+            int ipiv = -1;
+            double big = -1.0;
+            for (int px = top; px < n; px++) {
+                int i = xi[px];
+                if (pinv[i] < 0) {
+                    double t = Math.abs(x[i]);
+                    if (t > big) {
+                        big = t;
+                        ipiv = i;
+                    }
+                } else {
+                    Ui[unz] = pinv[i];
+                    Ux[unz++] = x[i];
+                }
+            }
+            if (ipiv == -1 || big <= 0.0) {
+                Lp[k+1] = lnz;
+                Up[k+1] = unz;
+                return new SparseLU(n, Lp, Li, Lx, Up, Ui, Ux, pinv, q, 0.0);
+            }
+            if (pinv[col] < 0 && mark[col] == stamp && x[col] != 0.0 && Math.abs(x[col]) >= tol*big)
+                ipiv = col;
+
+            double pivot = x[ipiv];
+            Ui[unz] = k;
+            Ux[unz++] = pivot;
+            pinv[ipiv] = k;
+            Li[lnz] = ipiv;
+            Lx[lnz++] = 1.0;
+            for (int px = top; px < n; px++) {
+                int i = xi[px];
+                if (pinv[i] < 0) {
+                    Li[lnz] = i;
+                    Lx[lnz++] = x[i]/pivot;
+                }
+            }
+        }
+        Lp[n] = lnz;
+        Up[n] = unz;
+        for (int p = 0; p < lnz; p++)
+            Li[p] = pinv[Li[p]];
+
+        double sign = parity(pinv)*parity(q);
+        return new SparseLU(n, Lp, Arrays.copyOf(Li, lnz), Arrays.copyOf(Lx, lnz),
+                            Up, Arrays.copyOf(Ui, unz), Arrays.copyOf(Ux, unz), pinv, q, sign);
+    }
+
+    /**
+     * Finds the rows of x which can be non-zero in L x = A(:,col), by a
+     * depth-first search from each non-zero of A(:,col) through the
+     * columns of L. The rows are left in xi[top..n-1] in topological order.
+     * The search is iterative, with xi[0..head] as its stack, so deep
+     * dependency chains cannot overflow the Java stack.
+     */
+    private static int reach(int[] Ap, int[] Ai, int col, int[] Lp, int[] Li, int[] pinv,
+                             int[] xi, int[] pstack, int[] mark, int stamp, int n) {
+        int top = n;
+        for (int p0 = Ap[col]; p0 < Ap[col+1]; p0++) {
+            if (mark[Ai[p0]] == stamp)
+                continue;
+            int head = 0;
+            xi[0] = Ai[p0];
+            while (head >= 0) {
+                int j = xi[head], J = pinv[j];
+                if (mark[j] != stamp) {
+                    mark[j] = stamp;
+                    pstack[head] = J < 0 ? 0 : Lp[J]+1;
+                }
+                boolean done = true;
+                int end = J < 0 ? 0 : Lp[J+1];
+                for (int p = pstack[head]; p < end; p++) {
+                    int i = Li[p];
+                    if (mark[i] == stamp)
+                        continue;
+                    pstack[head] = p+1;
+                    xi[++head] = i;
+                    done = false;
+                    break;
+                }
+                if (done) {
+                    head--;
+                    xi[--top] = j;
+                }
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Returns the sign of a permutation, found by counting its cycles.
+     */
+    private static double parity(int[] p) {
+        boolean[] seen = new boolean[p.length];
+        double s = 1.0;
+        for (int i = 0; i < p.length; i++) {
+            if (seen[i])
+                continue;
+            int len = 0;
+            for (int j = i; !seen[j]; j = p[j]) {
+                seen[j] = true;
+                len++;
+            }
+            if (len % 2 == 0)
+                s = -s;
+        }
+        return s;
+    }
+
+    /**
+     * @return Whether the matrix is singular, i.e. some column had no
+     *         non-zero pivot.
+     */
+    public boolean isSingular() {
+        return sign == 0.0;
+    }
+
+    /**
+     * @return The number of entries stored in L, including its diagonal.
+     */
+    public int nonZerosL() {
+        return Lp[n];
+    }
+
+    /**
+     * @return The number of entries stored in U.
+     */
+    public int nonZerosU() {
+        return Up[n];
+    }
+
+    /**
+     * @return A copy of the column ordering: column k of AQ is column q[k]
+     *         of A.
+     */
+    public int[] getColumnOrder() {
+        return q.clone();
+    }
+
+    /**
+     * Return the determinant of the matrix, which is the product of the
+     * diagonal of U times the signs of the row and column permutations.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        if (sign == 0.0)
+            return 0.0;
+        double det = sign;
+        for (int k = 0; k < n; k++)
+            det *= Ux[Up[k+1]-1];
+        return det;
+    }
+
+    /**
+     * Return the determinant of the matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        ScaledDeterminant.Accumulator result = new ScaledDeterminant.Accumulator(sign);
+        if (sign != 0.0)
+            for (int k = 0; k < n; k++)
+                result.multiply(Ux[Up[k+1]-1]);
+        return result.result();
+    }
+
+    /**
+     * Return the natural logarithm of the absolute value of the
+     * determinant.
+     *
+     * @return log|det(A)|, or -Infinity if the matrix is singular.
+     */
+    public double logDeterminant() {
+        return scaledDeterminant().logAbs();
+    }
+
+    /**
+     * Return the sign of the determinant, to go with logDeterminant().
+     *
+     * @return 1, -1 or 0.
+     */
+    public double determinantSign() {
+        return scaledDeterminant().sign();
+    }
+
+    /**
+     * Solves Ax = b by permuting b, substituting with L and U and undoing
+     * the column ordering. Costs O(nnz(L) + nnz(U)).
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        if (b.length != n)
+            throw new MatrixException("Right-hand side has the wrong length");
+        if (sign == 0.0)
+            throw new MatrixException("Matrix is singular");
+
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++)
+            y[pinv[i]] = b[i];
+        // Forward substitution with L, whose unit diagonal comes first.
+        for (int j = 0; j < n; j++) {
+            double yj = y[j];
+            if (yj != 0.0)
+                for (int p = Lp[j]+1; p < Lp[j+1]; p++)
+                    y[Li[p]] -= Lx[p]*yj;
+        }
+        // Back substitution with U, whose diagonal comes last.
+        for (int j = n-1; j >= 0; j--) {
+            y[j] /= Ux[Up[j+1]-1];
+            double yj = y[j];
+            if (yj != 0.0)
+                for (int p = Up[j]; p < Up[j+1]-1; p++)
+                    y[Ui[p]] -= Ux[p]*yj;
+        }
+        double[] x = new double[n];
+        for (int k = 0; k < n; k++)
+            x[q[k]] = y[k];
+        return x;
+    }
+}
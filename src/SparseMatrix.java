@@ -0,0 +1,586 @@
+/*
+ * Contains a template for a SparseMatrix object. Only the non-zero entries
+ * are stored, in compressed sparse row (CSR) form: the column indices and
+ * values of row i are colIdx[rowPtr[i] .. rowPtr[i+1]-1] and
+ * values[rowPtr[i] .. rowPtr[i+1]-1], with the column indices of each row
+ * strictly increasing. The compressed sparse column (CSC) form of a matrix
+ * is the CSR form of its transpose, so transpose() also serves as the
+ * conversion to CSC.
+ *
+ * Memory and the cost of add and multiply are proportional to the number of
+ * non-zeros rather than to m*n, whichever side of the operation the sparse
+ * matrix is on. Determinants and linear systems are handled
+ * by the sparse LU decomposition in SparseLU.
+ */
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+public class SparseMatrix extends Matrix {
+    /**
+     * The column orderings available to lu(). MINIMUM_DEGREE reorders the
+     * columns to reduce the fill-in of the factors, which for large sparse
+     * matrices usually makes the decomposition far cheaper than NATURAL.
+     */
+    public enum Ordering { NATURAL, MINIMUM_DEGREE }
+
+    /**
+     * The default pivot threshold for lu(), see SparseLU.
+     */
+    public static final double DEFAULT_TOLERANCE = 0.1;
+
+    /**
+     * The CSR arrays described above.
+     */
+    int[] rowPtr;
+    int[] colIdx;
+    double[] values;
+
+    /**
+     * Constructor function for an m x n matrix with no non-zero entries.
+     *
+     * @param M  The 'row' dimension of the matrix.
+     * @param N  The 'column' dimension of the matrix.
+     */
+    public SparseMatrix(int M, int N) {
+        this(M, N, new int[M+1], new int[0], new double[0]);
+    }
+
+    /**
+     * Constructor function from CSR arrays, which are used directly rather
+     * than copied. The column indices of each row must be strictly
+     * increasing.
+     *
+     * @param M       The 'row' dimension of the matrix.
+     * @param N       The 'column' dimension of the matrix.
+     * @param rowPtr  The start of each row, of length M+1.
+     * @param colIdx  The column index of each non-zero.
+     * @param values  The value of each non-zero.
+     */
+    public SparseMatrix(int M, int N, int[] rowPtr, int[] colIdx, double[] values) {
+        super(M, N);
+        if (M < 1 || N < 1)
+            throw new MatrixException("Matrix dimensions must be positive");
+        if (rowPtr.length != M+1 || rowPtr[0] != 0 || colIdx.length < rowPtr[M]
+            || values.length < rowPtr[M])
+            throw new MatrixException("Inconsistent CSR arrays");
+        for (int i = 0; i < M; i++) {
+            if (rowPtr[i+1] < rowPtr[i])
+                throw new MatrixException("Inconsistent CSR arrays");
+            for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                if (colIdx[p] < 0 || colIdx[p] >= N || (p > rowPtr[i] && colIdx[p] <= colIdx[p-1]))
+                    throw new MatrixException("Column indices must be increasing and in range");
+        }
+        this.rowPtr = rowPtr;
+        this.colIdx = colIdx;
+        this.values = values;
+    }
+
+    /**
+     * Builds a matrix from (row, column, value) triplets in any order.
+     * Duplicate entries are summed, as is usual when assembling finite
+     * element or finite difference systems.
+     *
+     * @param M     The 'row' dimension of the matrix.
+     * @param N     The 'column' dimension of the matrix.
+     * @param rows  The row index of each triplet.
+     * @param cols  The column index of each triplet.
+     * @param vals  The value of each triplet.
+     * @return      The matrix.
+     */
+    public static SparseMatrix fromTriplets(int M, int N, int[] rows, int[] cols, double[] vals) {
+        int nz = rows.length;
+        if (cols.length != nz || vals.length != nz)
+            throw new MatrixException("Triplet arrays have different lengths");
+        for (int p = 0; p < nz; p++)
+            if (rows[p] < 0 || rows[p] >= M || cols[p] < 0 || cols[p] >= N)
+                throw new MatrixException("Indexing is Out of Bounds");
+
+        // Bucket by column and then by row. Each counting sort is stable, so
+        // afterwards every row is in increasing column order.
+        int[] cp = new int[N+1], ci = new int[nz];
+        double[] cx = new double[nz];
+        for (int p = 0; p < nz; p++)
+            cp[cols[p]+1]++;
+        for (int j = 0; j < N; j++)
+            cp[j+1] += cp[j];
+        int[] next = Arrays.copyOf(cp, N);
+        for (int p = 0; p < nz; p++) {
+            int q = next[cols[p]]++;
+            ci[q] = rows[p];
+            cx[q] = vals[p];
+        }
+        SparseMatrix T = new SparseMatrix(N, M);
+        T.rowPtr = cp;
+        T.colIdx = ci;
+        T.values = cx;
+        SparseMatrix A = T.transpose();
+
+        // Sum the duplicates, which are now adjacent.
+        int[] ap = A.rowPtr, aj = A.colIdx;
+        double[] ax = A.values;
+        int w = 0;
+        for (int i = 0; i < M; i++) {
+            int start = ap[i];
+            ap[i] = w;
+            for (int p = start; p < ap[i+1]; p++) {
+                if (w > ap[i] && aj[w-1] == aj[p]) {
+                    ax[w-1] += ax[p];
+                } else {
+                    aj[w] = aj[p];
+                    ax[w++] = ax[p];
+                }
+            }
+        }
+        ap[M] = w;
+        A.colIdx = Arrays.copyOf(aj, w);
+        A.values = Arrays.copyOf(ax, w);
+        return A;
+    }
+
+    /**
+     * @return The number of stored entries.
+     */
+    public int nonZeros() {
+        return rowPtr[m];
+    }
+
+    /**
+     * Returns the transpose of the matrix. As the CSR form of the
+     * transpose is the CSC form of this matrix, this is also how to get
+     * column-wise access. Costs O(m + n + nnz).
+     *
+     * @return The transpose.
+     */
+    public SparseMatrix transpose() {
+        int nz = rowPtr[m];
+        int[] tp = new int[n+1], tj = new int[nz];
+        double[] tx = new double[nz];
+        for (int p = 0; p < nz; p++)
+            tp[colIdx[p]+1]++;
+        for (int j = 0; j < n; j++)
+            tp[j+1] += tp[j];
+        int[] next = Arrays.copyOf(tp, n);
+        for (int i = 0; i < m; i++) {
+            for (int p = rowPtr[i]; p < rowPtr[i+1]; p++) {
+                int q = next[colIdx[p]]++;
+                tj[q] = i;
+                tx[q] = values[p];
+            }
+        }
+        SparseMatrix T = new SparseMatrix(n, m);
+        T.rowPtr = tp;
+        T.colIdx = tj;
+        T.values = tx;
+        return T;
+    }
+
+    /**
+     * Returns the position of entry (i,j) in colIdx and values, or a
+     * negative number if it is not stored.
+     */
+    private int find(int i, int j) {
+        if (i < 0 || i >= m || j < 0 || j >= n)
+            throw new MatrixException("Indexing is Out of Bounds");
+        return Arrays.binarySearch(colIdx, rowPtr[i], rowPtr[i+1], j);
+    }
+
+    /**
+     * Getter function: return the (i,j)th entry of the matrix. This is a
+     * binary search in row i.
+     *
+     * @param i  The location in the first co-ordinate.
+     * @param j  The location in the second co-ordinate.
+     * @return   The (i,j)th entry of the matrix.
+     */
+    public double getIJ(int i, int j) {
+        int p = find(i, j);
+        return p >= 0 ? values[p] : 0.0;
+    }
+
+    /**
+     * Copies len entries of row i, starting at column j0, into dst[off..],
+     * writing zeros and then the stored entries of the row in that range.
+     *
+     * @param i    The row.
+     * @param j0   The first column to copy.
+     * @param dst  The array to copy into.
+     * @param off  The index in dst of the first entry.
+     * @param len  The number of entries to copy.
+     */
+    public void getRow(int i, int j0, double[] dst, int off, int len) {
+        if (i < 0 || i >= m || j0 < 0 || len < 0 || j0 + len > n)
+            throw new MatrixException("Indexing is Out of Bounds");
+        Arrays.fill(dst, off, off + len, 0.0);
+        int p = Arrays.binarySearch(colIdx, rowPtr[i], rowPtr[i+1], j0);
+        for (p = p >= 0 ? p : -p - 1; p < rowPtr[i+1] && colIdx[p] < j0 + len; p++)
+            dst[off + colIdx[p] - j0] = values[p];
+    }
+
+    /**
+     * Setter function: set the (i,j)th entry of the matrix. Changing a
+     * stored entry is cheap, but storing a new one shifts every later entry
+     * and costs O(nnz), so large matrices should be built with
+     * fromTriplets instead.
+     *
+     * @param i    The location in the first coordinate.
+     * @param j    The location in the second coordinate.
+     * @param val  The value to set the (i,j)th entry to.
+     */
+    public void setIJ(int i, int j, double val) {
+        int p = find(i, j);
+        if (p >= 0) {
+            values[p] = val;
+            return;
+        }
+        if (val == 0.0)
+            return;
+        int at = -p - 1, nz = rowPtr[m];
+        int[] cj = new int[nz+1];
+        double[] cx = new double[nz+1];
+        System.arraycopy(colIdx, 0, cj, 0, at);
+        System.arraycopy(values, 0, cx, 0, at);
+        cj[at] = j;
+        cx[at] = val;
+        System.arraycopy(colIdx, at, cj, at+1, nz-at);
+        System.arraycopy(values, at, cx, at+1, nz-at);
+        colIdx = cj;
+        values = cx;
+        for (int r = i+1; r <= m; r++)
+            rowPtr[r]++;
+    }
+
+    /**
+     * Computes y = Ax.
+     *
+     * @param x  A vector of length n.
+     * @return   The product, of length m.
+     */
+    public double[] multiply(double[] x) {
+        if (x.length != n)
+            throw new MatrixException("Vector has the wrong length");
+        double[] y = new double[m];
+        for (int i = 0; i < m; i++) {
+            double s = 0.0;
+            for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                s += values[p]*x[colIdx[p]];
+            y[i] = s;
+        }
+        return y;
+    }
+
+    /**
+     * Factorises the matrix with the default column ordering and pivot
+     * threshold.
+     *
+     * @return The sparse LU decomposition.
+     */
+    public SparseLU lu() {
+        return lu(Ordering.MINIMUM_DEGREE, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Factorises the matrix with a given column ordering and pivot
+     * threshold, see SparseLU.
+     *
+     * @param ordering  The column ordering.
+     * @param tol       The pivot threshold, between 0 and 1.
+     * @return          The sparse LU decomposition.
+     */
+    public SparseLU lu(Ordering ordering, double tol) {
+        if (m != n)
+            throw new MatrixException("Matrix is not square");
+        if (!(tol >= 0.0 && tol <= 1.0))
+            throw new MatrixException("Pivot threshold must be between 0 and 1");
+        int[] q;
+        if (ordering == Ordering.MINIMUM_DEGREE) {
+            q = MinimumDegree.order(this);
+        } else {
+            q = new int[n];
+            for (int j = 0; j < n; j++)
+                q[j] = j;
+        }
+        return SparseLU.factor(this, q, tol);
+    }
+
+    /**
+     * Return the determinant of this matrix from its sparse LU
+     * decomposition.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinant() {
+        return lu().determinant();
+    }
+
+    /**
+     * Return the determinant of this matrix as mantissa * 2^exponent, which
+     * cannot overflow or underflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        return lu().scaledDeterminant();
+    }
+
+    /**
+     * Solves Ax = b. To solve against several right-hand sides, factorise
+     * once with lu() instead.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        return lu().solve(b);
+    }
+
+    /**
+     * Add the matrix to another matrix A. Two sparse matrices are added by
+     * merging their rows, giving a SparseMatrix in O(nnz); otherwise the
+     * non-zeros of this matrix are added to a dense copy of A.
+     *
+     * @param A  The Matrix to add to this matrix.
+     * @return   The sum of this matrix with the matrix A.
+     */
+    public Matrix add(Matrix A) {
+        if (A.m != m || A.n != n)
+            throw new MatrixException("The matricies are of different dimensions so cannot be summed.");
+        Matrix sum = A.addTo(this);
+        if (sum != null)
+            return sum;
+        GeneralMatrix result = new GeneralMatrix(m, n);
+        for (int i = 0; i < m; i++)
+            for (int j = 0; j < n; j++)
+                result.setIJ(i, j, A.getIJ(i, j));
+        addNonZeros(result);
+        return result;
+    }
+
+    Matrix addTo(SparseMatrix A) {
+        int[] cp = new int[m+1], cj = new int[A.rowPtr[m] + rowPtr[m]];
+        double[] cx = new double[cj.length];
+        int w = 0;
+        for (int i = 0; i < m; i++) {
+            int p = A.rowPtr[i], pe = A.rowPtr[i+1], q = rowPtr[i], qe = rowPtr[i+1];
+            while (p < pe || q < qe) {
+                int jp = p < pe ? A.colIdx[p] : n, jq = q < qe ? colIdx[q] : n;
+                if (jp < jq) {
+                    cj[w] = jp;
+                    cx[w++] = A.values[p++];
+                } else if (jq < jp) {
+                    cj[w] = jq;
+                    cx[w++] = values[q++];
+                } else {
+                    cj[w] = jp;
+                    cx[w++] = A.values[p++] + values[q++];
+                }
+            }
+            cp[i+1] = w;
+        }
+        return new SparseMatrix(m, n, cp, Arrays.copyOf(cj, w), Arrays.copyOf(cx, w));
+    }
+
+    Matrix addTo(GeneralMatrix A) {
+        return addDense(A);
+    }
+
+    /**
+     * Returns G plus this matrix as a new GeneralMatrix, in O(m*n + nnz).
+     *
+     * @param G  A matrix of the same size.
+     * @return   The sum.
+     */
+    GeneralMatrix addDense(GeneralMatrix G) {
+        GeneralMatrix result = new GeneralMatrix(G);
+        addNonZeros(result);
+        return result;
+    }
+
+    /**
+     * Adds the non-zeros of this matrix to the compact m x n matrix G in
+     * place.
+     */
+    private void addNonZeros(GeneralMatrix G) {
+        double[] r = G.array();
+        for (int i = 0; i < m; i++)
+            for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                r[i*n + colIdx[p]] += values[p];
+    }
+
+    /**
+     * Multiply the matrix by another matrix A. This is a 'left' product,
+     * i.e. if this matrix is called B then it calculates the product BA.
+     * The product of two sparse matrices is formed row by row with a dense
+     * accumulator (Gustavson's algorithm), in time proportional to the
+     * number of multiplications; otherwise each row of the GeneralMatrix
+     * result is a combination of the rows of A picked out by the non-zeros.
+     *
+     * @param A  The Matrix to multiply by.
+     * @return   The product of this matrix with the matrix A.
+     */
+    public Matrix multiply(Matrix A) {
+        if (A.m != n)
+            throw new MatrixException("The matrices are of incompatible dimensions for multiplication.");
+        Matrix product = A.multiplyLeftBy(this);
+        if (product != null)
+            return product;
+
+        int w = A.n;
+        GeneralMatrix result = new GeneralMatrix(m, w);
+        double[] r = result.array();
+        for (int i = 0; i < m; i++) {
+            for (int p = rowPtr[i]; p < rowPtr[i+1]; p++) {
+                int k = colIdx[p];
+                for (int j = 0; j < w; j++)
+                    r[i*w + j] += values[p]*A.getIJ(k, j);
+            }
+        }
+        return result;
+    }
+
+    Matrix multiplyLeftBy(SparseMatrix A) {
+        int w = n;
+        int[] cp = new int[A.m+1];
+        int[] cj = new int[Math.max(16, A.rowPtr[A.m] + rowPtr[m])];
+        double[] cx = new double[cj.length];
+        double[] acc = new double[w];
+        int[] mark = new int[w];
+        Arrays.fill(mark, -1);
+        int nz = 0;
+        for (int i = 0; i < A.m; i++) {
+            int start = nz;
+            for (int p = A.rowPtr[i]; p < A.rowPtr[i+1]; p++) {
+                int k = A.colIdx[p];
+                double a = A.values[p];
+                for (int q = rowPtr[k]; q < rowPtr[k+1]; q++) {
+                    int j = colIdx[q];
+                    if (mark[j] != i) {
+                        mark[j] = i;
+                        acc[j] = 0.0;
+                        if (nz == cj.length) {
+                            cj = Arrays.copyOf(cj, 2*nz);
+                            cx = Arrays.copyOf(cx, 2*nz);
+                        }
+                        cj[nz++] = j;
+                    }
+                    acc[j] += a*values[q];
+                }
+            }
+            Arrays.sort(cj, start, nz);
+            for (int p = start; p < nz; p++)
+                cx[p] = acc[cj[p]];
+            cp[i+1] = nz;
+        }
+        return new SparseMatrix(A.m, w, cp, Arrays.copyOf(cj, nz), Arrays.copyOf(cx, nz));
+    }
+
+    Matrix multiplyLeftBy(GeneralMatrix A) {
+        // Row i of the product combines the sparse rows of this matrix
+        // picked out by the non-zeros of row i of A, scattered into one
+        // dense row of the result, in O(A.m*(n + nnz)).
+        GeneralMatrix result = new GeneralMatrix(A.m, n);
+        double[] a = A.array(), r = result.array();
+        int ao = A.offset(), as = A.stride();
+        for (int i = 0; i < A.m; i++) {
+            int ai = ao + i*as, ri = i*n;
+            for (int k = 0; k < m; k++) {
+                double x = a[ai+k];
+                if (x == 0.0)
+                    continue;
+                for (int p = rowPtr[k]; p < rowPtr[k+1]; p++)
+                    r[ri + colIdx[p]] += x*values[p];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the product SG, where S is this matrix, as a GeneralMatrix.
+     * Each row of the product is a combination of the rows of G picked out
+     * by the non-zeros in that row of S.
+     *
+     * @param G  The matrix on the right of the product.
+     * @return   The product.
+     */
+    GeneralMatrix multiplyDense(GeneralMatrix G) {
+        GeneralMatrix result = new GeneralMatrix(m, G.n);
+        double[] g = G.array(), r = result.array();
+        int go = G.offset(), gs = G.stride(), w = G.n;
+        for (int i = 0; i < m; i++)
+            for (int p = rowPtr[i]; p < rowPtr[i+1]; p++)
+                Kernels.axpy(w, values[p], g, go + colIdx[p]*gs, r, i*w);
+        return result;
+    }
+
+    /**
+     * Multiply the matrix by a scalar, keeping the sparsity pattern.
+     *
+     * @param a  The scalar to multiply the matrix by.
+     * @return   The product of this matrix with the scalar a.
+     */
+    public Matrix multiply(double a) {
+        int nz = rowPtr[m];
+        double[] cx = new double[nz];
+        Kernels.scale(nz, a, values, 0, cx, 0);
+        return new SparseMatrix(m, n, rowPtr.clone(), Arrays.copyOf(colIdx, nz), cx);
+    }
+
+    /**
+     * Replaces the stored entries with random numbers which are uniformly
+     * distributed between 0 and 1, drawn from the current thread's
+     * generator (see RandomFill). The sparsity pattern is kept.
+     */
+    public void random() {
+        random(RandomFill.current());
+    }
+
+    /**
+     * Replaces the stored entries with random numbers which are uniformly
+     * distributed between 0 and 1, drawn from the given generator. The
+     * sparsity pattern is kept.
+     *
+     * @param rng  The source of random numbers.
+     */
+    public void random(RandomGenerator rng) {
+        RandomFill.fill(values, 0, rowPtr[m], rng);
+    }
+
+    /*
+     * Main function with some manual tests.
+     */
+    public static void main(String[] args) {
+        // The 2D Laplacian on a k x k grid, which has 5 non-zeros per row.
+        int k = 4, N = k*k;
+        int[] rows = new int[5*N], cols = new int[5*N];
+        double[] vals = new double[5*N];
+        int nz = 0;
+        for (int i = 0; i < N; i++) {
+            int x = i % k, y = i / k;
+            rows[nz] = i; cols[nz] = i; vals[nz++] = 4;
+            if (x > 0)   { rows[nz] = i; cols[nz] = i-1; vals[nz++] = -1; }
+            if (x < k-1) { rows[nz] = i; cols[nz] = i+1; vals[nz++] = -1; }
+            if (y > 0)   { rows[nz] = i; cols[nz] = i-k; vals[nz++] = -1; }
+            if (y < k-1) { rows[nz] = i; cols[nz] = i+k; vals[nz++] = -1; }
+        }
+        SparseMatrix A = fromTriplets(N, N, Arrays.copyOf(rows, nz), Arrays.copyOf(cols, nz),
+                                      Arrays.copyOf(vals, nz));
+        System.out.println("Non-zeros in the " + N + "x" + N + " Laplacian: " + A.nonZeros());
+
+        GeneralMatrix G = new GeneralMatrix(N, N);
+        for (int i = 0; i < N; i++)
+            for (int j = 0; j < N; j++)
+                G.setIJ(i, j, A.getIJ(i, j));
+        SparseLU lu = A.lu();
+        System.out.println("Determinant: " + lu.determinant());
+        System.out.println("Determinant as a GeneralMatrix: " + G.determinant());
+        System.out.println("Non-zeros in L and U: " + lu.nonZerosL() + " " + lu.nonZerosU() + "\n");
+
+        double[] b = new double[N];
+        Arrays.fill(b, 1.0);
+        double[] x = lu.solve(b), r = A.multiply(x);
+        double res = 0.0;
+        for (int i = 0; i < N; i++)
+            res = Math.max(res, Math.abs(r[i] - b[i]));
+        System.out.println("Largest residual of Ax = 1: " + res);
+    }
+}
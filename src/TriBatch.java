@@ -0,0 +1,270 @@
+/*
+ * This class holds a batch of tridiagonal systems of the same size and
+ * factorises or solves all of them in one call.
+ *
+ * The systems are stored structure-of-arrays: entry i of system s lives at
+ * index i*count + s of each array, so the entries at the same position in
+ * every system are adjacent. The Thomas recurrence is sequential in i but
+ * independent across systems, so every loop here runs over s innermost,
+ * which is contiguous and is vectorised by the JIT. Thousands of small
+ * systems are then solved at close to the machine's memory bandwidth
+ * instead of paying the per-object and per-call cost of a TriMatrix each.
+ *
+ * Like the Thomas algorithm in TriMatrix there is no pivoting, so the
+ * systems should be diagonally dominant. A system which meets a zero pivot
+ * is left out of the rest of the elimination, so the others are
+ * unaffected: determinants() then finds its determinant with the pivoted
+ * algorithm of TriMatrix, and solve() throws a MatrixException.
+ */
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+public class TriBatch {
+    /**
+     * The dimension of each system and the number of systems.
+     */
+    private final int n, count;
+
+    /**
+     * The three diagonals of every system. Before factor() these hold the
+     * matrices; afterwards lower holds the multipliers of L and diag the
+     * pivots of U, while upper is unchanged.
+     */
+    private final double[] lower, diag, upper;
+
+    /**
+     * After factor(), stop[s] is -1 if system s was factorised and
+     * otherwise the row whose pivot was zero. Rows up to that one hold the
+     * factors and the later rows are unchanged.
+     */
+    private final int[] stop;
+
+    /**
+     * Scratch space holding a value per system: the factor to scale the
+     * multiplier by, and 1 or 0 depending on whether the system is still
+     * being eliminated.
+     */
+    private final double[] scale, live;
+
+    /**
+     * Whether factor() has been called since the matrices were last
+     * changed.
+     */
+    private boolean factored;
+
+    /**
+     * Constructor function.
+     *
+     * @param n      The dimension of each system.
+     * @param count  The number of systems.
+     */
+    public TriBatch(int n, int count) {
+        if (n < 1 || count < 1)
+            throw new MatrixException("Batch dimensions must be positive");
+        this.n = n;
+        this.count = count;
+        this.lower = new double[(n-1)*count];
+        this.diag  = new double[n*count];
+        this.upper = new double[(n-1)*count];
+        this.stop  = new int[count];
+        this.scale = new double[count];
+        this.live  = new double[count];
+    }
+
+    /**
+     * @return The dimension of each system.
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * @return The number of systems.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the array holding the subdiagonals, with entry (i+1,i) of
+     * system s at index i*count + s. Writing to it directly is the fastest
+     * way to fill the batch; call modified() afterwards.
+     *
+     * @return The subdiagonal array.
+     */
+    public double[] lower() {
+        return lower;
+    }
+
+    /**
+     * Returns the array holding the diagonals, with entry (i,i) of system s
+     * at index i*count + s.
+     *
+     * @return The diagonal array.
+     */
+    public double[] diag() {
+        return diag;
+    }
+
+    /**
+     * Returns the array holding the superdiagonals, with entry (i,i+1) of
+     * system s at index i*count + s.
+     *
+     * @return The superdiagonal array.
+     */
+    public double[] upper() {
+        return upper;
+    }
+
+    /**
+     * Marks the matrices as changed after writing to the arrays directly,
+     * so that the next solve factorises again.
+     */
+    public void modified() {
+        factored = false;
+    }
+
+    /**
+     * Copies a TriMatrix into the batch.
+     *
+     * @param s  The index of the system.
+     * @param T  The matrix, which must be n x n.
+     */
+    public void set(int s, TriMatrix T) {
+        if (T.m != n)
+            throw new MatrixException("Matrix is the wrong size for this batch");
+        for (int i = 0; i < n; i++) {
+            diag[i*count + s] = T.getIJ(i, i);
+            if (i < n-1) {
+                upper[i*count + s] = T.getIJ(i, i+1);
+                lower[i*count + s] = T.getIJ(i+1, i);
+            }
+        }
+        factored = false;
+    }
+
+    /**
+     * Fills every system with random numbers uniformly distributed between
+     * 0 and 1.
+     *
+     * @param rng  The source of random numbers.
+     */
+    public void random(RandomGenerator rng) {
+        RandomFill.fill(lower, 0, lower.length, rng);
+        RandomFill.fill(diag, 0, diag.length, rng);
+        RandomFill.fill(upper, 0, upper.length, rng);
+        factored = false;
+    }
+
+    /**
+     * Computes the LU decomposition of every system in place. A system
+     * whose pivot is zero stops being eliminated at that row. Calling this
+     * again before the matrices change does nothing.
+     */
+    public void factor() {
+        if (factored)
+            return;
+        Arrays.fill(stop, -1);
+        for (int i = 1; i < n; i++) {
+            int p = (i-1)*count, c = i*count;
+            // Check each pivot before dividing by it. A system which has
+            // stopped keeps its entries: its multiplier is scaled by 1 and
+            // its update multiplied by 0.
+            for (int s = 0; s < count; s++) {
+                double d = diag[p+s];
+                if (d == 0.0 && stop[s] < 0)
+                    stop[s] = i-1;
+                boolean ok = stop[s] < 0;
+                scale[s] = ok ? 1.0/d : 1.0;
+                live[s]  = ok ? 1.0 : 0.0;
+            }
+            for (int s = 0; s < count; s++) {
+                double l = lower[p+s]*scale[s];
+                lower[p+s] = l;
+                diag[c+s] -= live[s]*l*upper[p+s];
+            }
+        }
+        int last = (n-1)*count;
+        for (int s = 0; s < count; s++)
+            if (diag[last+s] == 0.0 && stop[s] < 0)
+                stop[s] = n-1;
+        factored = true;
+    }
+
+    /**
+     * Returns system s as it was before factor(), undoing the elimination
+     * of the rows up to stop[s]. The entries agree with the originals up
+     * to rounding.
+     */
+    private TriMatrix original(int s) {
+        TriMatrix T = new TriMatrix(n);
+        double[] d = T.diagonal(), l = T.lowerDiagonal(), u = T.upperDiagonal();
+        for (int i = 0; i < n; i++) {
+            d[i] = diag[i*count + s];
+            if (i < n-1) {
+                l[i] = lower[i*count + s];
+                u[i] = upper[i*count + s];
+            }
+        }
+        for (int i = stop[s]; i >= 1; i--) {
+            d[i] += l[i-1]*u[i-1];
+            l[i-1] *= d[i-1];
+        }
+        return T;
+    }
+
+    /**
+     * Solves every system against its own right-hand side, factorising
+     * first if needed.
+     *
+     * @param b  On entry the right-hand sides, on exit the solutions, with
+     *           entry i of system s at index i*count + s.
+     */
+    public void solve(double[] b) {
+        if (b.length != n*count)
+            throw new MatrixException("Right-hand sides have the wrong length");
+        factor();
+        for (int s = 0; s < count; s++)
+            if (stop[s] >= 0)
+                throw new MatrixException("Zero pivot in system " + s);
+        // Forward substitution with L.
+        for (int i = 1; i < n; i++) {
+            int p = (i-1)*count, c = i*count;
+            for (int s = 0; s < count; s++)
+                b[c+s] -= lower[p+s]*b[p+s];
+        }
+        // Back substitution with U.
+        int last = (n-1)*count;
+        for (int s = 0; s < count; s++)
+            b[last+s] /= diag[last+s];
+        for (int i = n-2; i >= 0; i--) {
+            int c = i*count, q = (i+1)*count;
+            for (int s = 0; s < count; s++)
+                b[c+s] = (b[c+s] - upper[c+s]*b[q+s])/diag[c+s];
+        }
+    }
+
+    /**
+     * Computes the determinant of every system, factorising first if
+     * needed. A system which met a zero pivot is rebuilt and its
+     * determinant found by TriMatrix with row interchanges, so a singular
+     * system gives 0 rather than an exception.
+     *
+     * @param out  An array of length count to receive the determinants.
+     */
+    public void determinants(double[] out) {
+        if (out.length != count)
+            throw new MatrixException("Output has the wrong length");
+        factor();
+        System.arraycopy(diag, 0, out, 0, count);
+        for (int i = 1; i < n; i++) {
+            int c = i*count;
+            for (int s = 0; s < count; s++)
+                out[s] *= diag[c+s];
+        }
+        for (int s = 0; s < count; s++)
+            if (stop[s] >= 0)
+                out[s] = original(s).determinant();
+    }
+}
@@ -3,7 +3,7 @@
  * is populated by zeroes except on the leading diagonal and the two off-diagonals.
  */
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class TriMatrix extends Matrix {
     /**
@@ -37,6 +37,22 @@ public class TriMatrix extends Matrix {
         lower = new double[N-1];
     }
 
+    /**
+     * @return The arrays holding the diagonal, lower and upper diagonals.
+     *         Used by MatrixIO, which copies the storage directly.
+     */
+    double[] diagonal() {
+        return diag;
+    }
+
+    double[] lowerDiagonal() {
+        return lower;
+    }
+
+    double[] upperDiagonal() {
+        return upper;
+    }
+
     /**
      * Getter function: return the (i,j)th entry of the matrix.
      *
@@ -82,7 +98,7 @@ public class TriMatrix extends Matrix {
         } else if(i + 1 == j) {
             upper[i] = val;
         } else if (i - 1 == j) {
-            lower[i] = val;
+            lower[j] = val;
         }
     }
 
@@ -92,17 +108,240 @@ public class TriMatrix extends Matrix {
      * @return The determinant of the matrix.
      */
     public double determinant() {
-        TriMatrix decomposed = this.decomp();
-        double result = 1.0;
-        for(int i =0; i < diag.length; i++){
-            result *= decomposed.diag[i];
+        // This runs the same recurrence as decomp() but only keeps the
+        // current pivot, so no memory is allocated. If a pivot is zero the
+        // recurrence breaks down, so we start again with row interchanges.
+        double pivot = diag[0];
+        double result = pivot;
+        for(int j = 0; j < lower.length; j++){
+            if(pivot == 0.0){
+                return pivotedScaledDeterminant().doubleValue();
+            }
+            pivot = diag[j+1] - (lower[j]/pivot)*upper[j];
+            result *= pivot;
         }
         return result;
     }
 
+    /**
+     * Return the determinant of this matrix as mantissa * 2^exponent. This
+     * runs the same recurrence as determinant() but renormalises the
+     * running product after each pivot, so it cannot underflow or overflow.
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminant() {
+        double pivot = diag[0];
+        ScaledDeterminant.Accumulator result = new ScaledDeterminant.Accumulator(1.0);
+        result.multiply(pivot);
+        for(int j = 0; j < lower.length; j++){
+            if(pivot == 0.0){
+                return pivotedScaledDeterminant();
+            }
+            pivot = diag[j+1] - (lower[j]/pivot)*upper[j];
+            result.multiply(pivot);
+        }
+        return result.result();
+    }
+
+    /**
+     * Return the determinant in scaled form using Gaussian elimination with
+     * partial pivoting, which works even when the leading minors vanish.
+     */
+    private ScaledDeterminant pivotedScaledDeterminant() {
+        int N = diag.length;
+        double[] d = diag.clone(), dl = lower.clone(), du = upper.clone();
+        double sign = pivotedFactor(d, dl, du, null);
+        ScaledDeterminant.Accumulator result = new ScaledDeterminant.Accumulator(sign);
+        for(int i = 0; i < N; i++){
+            result.multiply(d[i]);
+        }
+        return result.result();
+    }
+
+    /**
+     * Solves Tx = b using the Thomas algorithm, i.e. Gaussian elimination
+     * without pivoting specialised to three diagonals. This is O(n) and is
+     * stable for diagonally dominant matrices; if a zero pivot turns up a
+     * MatrixException is thrown and solvePivoted should be used instead.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solve(double[] b) {
+        double[] x = b.clone();
+        solveInPlace(x, new double[Math.max(1, upper.length)]);
+        return x;
+    }
+
+    /**
+     * Solves Tx = b using the Thomas algorithm without allocating. Neither
+     * this matrix nor its decomposition is modified.
+     *
+     * @param b     On entry the right-hand side, on exit the solution.
+     * @param work  Scratch space of length at least n-1.
+     */
+    public void solveInPlace(double[] b, double[] work) {
+        int N = diag.length;
+        if(b.length != N){
+            throw new MatrixException("Right-hand side has the wrong length");
+        }
+        // Forward sweep: work[i] holds the upper diagonal of U divided by
+        // its pivot, and b is overwritten by the forward substitution.
+        double pivot = diag[0];
+        if(pivot == 0.0){
+            throw new MatrixException("Zero pivot in tridiagonal solve");
+        }
+        b[0] /= pivot;
+        for(int i = 1; i < N; i++){
+            work[i-1] = upper[i-1]/pivot;
+            pivot = diag[i] - lower[i-1]*work[i-1];
+            if(pivot == 0.0){
+                throw new MatrixException("Zero pivot in tridiagonal solve");
+            }
+            b[i] = (b[i] - lower[i-1]*b[i-1])/pivot;
+        }
+        // Back substitution.
+        for(int i = N-2; i >= 0; i--){
+            b[i] -= work[i]*b[i+1];
+        }
+    }
+
+    /**
+     * Solves Tx = b by Gaussian elimination with partial pivoting, as in
+     * LAPACK's dgtsv. Row interchanges introduce a second superdiagonal in
+     * U, but the work is still O(n). Use this when T is not diagonally
+     * dominant.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solvePivoted(double[] b) {
+        int N = diag.length;
+        if(b.length != N){
+            throw new MatrixException("Right-hand side has the wrong length");
+        }
+        double[] d = diag.clone(), dl = lower.clone(), du = upper.clone(), x = b.clone();
+        if(pivotedFactor(d, dl, du, x) == 0.0){
+            throw new MatrixException("Matrix is singular");
+        }
+        // Back substitution with U, whose second superdiagonal is in dl.
+        x[N-1] /= d[N-1];
+        if(N > 1){
+            x[N-2] = (x[N-2] - du[N-2]*x[N-1])/d[N-2];
+        }
+        for(int i = N-3; i >= 0; i--){
+            x[i] = (x[i] - du[i]*x[i+1] - dl[i]*x[i+2])/d[i];
+        }
+        return x;
+    }
+
+    /**
+     * Solves Tx = b like solve(), but for very large matrices the work is
+     * split into partitions which are solved concurrently on the shared
+     * ForkJoinPool and then coupled through a small dense system (see
+     * TriParallel.solve). Matrices too small to be worth splitting are
+     * solved serially. The result agrees with solve() to within rounding.
+     *
+     * @param b  The right-hand side, of length n. It is not modified.
+     * @return   The solution x.
+     */
+    public double[] solveParallel(double[] b) {
+        if(b.length != diag.length){
+            throw new MatrixException("Right-hand side has the wrong length");
+        }
+        if(TriParallel.partitions(diag.length) == 1){
+            return solve(b);
+        }
+        double[] x = b.clone();
+        TriParallel.solve(lower, diag, upper, x, DenseLU.pool());
+        return x;
+    }
+
+    /**
+     * Return the determinant of this matrix in scaled form, computed in
+     * parallel for very large matrices by multiplying the 2x2 transfer
+     * matrices of the leading-minor recurrence in independent partitions
+     * (see TriParallel.determinant). Small matrices use
+     * scaledDeterminant().
+     *
+     * @return The determinant of the matrix in scaled form.
+     */
+    public ScaledDeterminant scaledDeterminantParallel() {
+        if(TriParallel.partitions(diag.length) == 1){
+            return scaledDeterminant();
+        }
+        return TriParallel.determinant(lower, diag, upper, DenseLU.pool());
+    }
+
+    /**
+     * Return the determinant of this matrix, computed in parallel for very
+     * large matrices.
+     *
+     * @return The determinant of the matrix.
+     */
+    public double determinantParallel() {
+        return scaledDeterminantParallel().doubleValue();
+    }
+
+    /**
+     * Reduces a tridiagonal matrix to upper triangular form with partial
+     * pivoting, following LAPACK's dgtsv. On exit d holds the diagonal of
+     * U, du its first superdiagonal and dl its second superdiagonal.
+     *
+     * @param d   The diagonal, overwritten.
+     * @param dl  The subdiagonal, overwritten.
+     * @param du  The superdiagonal, overwritten.
+     * @param x   If not null, a right-hand side to which the same row
+     *            operations are applied.
+     * @return    1 or -1, the sign due to the row interchanges, or 0 if the
+     *            matrix is singular.
+     */
+    private static double pivotedFactor(double[] d, double[] dl, double[] du, double[] x) {
+        int N = d.length;
+        double sign = 1.0;
+        for(int i = 0; i < N-1; i++){
+            if(Math.abs(d[i]) >= Math.abs(dl[i])){
+                // No row interchange required.
+                if(d[i] == 0.0){
+                    return 0.0;
+                }
+                double fact = dl[i]/d[i];
+                d[i+1] -= fact*du[i];
+                if(x != null){
+                    x[i+1] -= fact*x[i];
+                }
+                dl[i] = 0.0;
+            }
+            else{
+                // Interchange rows i and i+1.
+                double fact = d[i]/dl[i];
+                d[i] = dl[i];
+                double temp = d[i+1];
+                d[i+1] = du[i] - fact*temp;
+                if(i < N-2){
+                    dl[i] = du[i+1];
+                    du[i+1] = -fact*dl[i];
+                }
+                else{
+                    dl[i] = 0.0;
+                }
+                du[i] = temp;
+                if(x != null){
+                    temp = x[i];
+                    x[i] = x[i+1];
+                    x[i+1] = temp - fact*x[i+1];
+                }
+                sign = -sign;
+            }
+        }
+        return d[N-1] == 0.0 ? 0.0 : sign;
+    }
+
     /**
      * Returns the LU decomposition of this matrix. See the formulation for a
-     * more detailed description.
+     * more detailed description. There is no pivoting, so a
+     * MatrixException is thrown if a zero pivot is met.
      *
      * @return The LU decomposition of this matrix.
      */
@@ -115,6 +354,9 @@ public class TriMatrix extends Matrix {
             decomposed.upper[i] = upper[i];
         }
         for(int j = 0; j < lower.length; j++){
+            if(decomposed.diag[j] == 0.0){
+                throw new MatrixException("Zero pivot in tridiagonal decomposition");
+            }
             decomposed.lower[j] = lower[j]/decomposed.diag[j];
             decomposed.diag[j+1] = diag[j+1] - (decomposed.lower[j]*decomposed.upper[j]);
         }
@@ -122,7 +364,26 @@ public class TriMatrix extends Matrix {
     }
 
     /**
-     * Add the matrix to another matrix A.
+     * Overwrites this matrix with its LU decomposition, in the same form as
+     * decomp() returns, without allocating a new TriMatrix.
+     *
+     * @return This matrix, now holding its LU decomposition.
+     */
+    public TriMatrix decompInPlace() {
+        for(int j = 0; j < lower.length; j++){
+            if(diag[j] == 0.0){
+                throw new MatrixException("Zero pivot in tridiagonal decomposition");
+            }
+            lower[j] = lower[j]/diag[j];
+            diag[j+1] = diag[j+1] - (lower[j]*upper[j]);
+        }
+        return this;
+    }
+
+    /**
+     * Add the matrix to another matrix A. The sum of two TriMatrix objects
+     * is a TriMatrix and with a BandMatrix a BandMatrix, both in O(n); any
+     * other matrix is copied and only its three diagonals updated.
      *
      * @param A  The Matrix to add to this matrix.
      * @return   The sum of this matrix with the matrix A.
@@ -131,21 +392,80 @@ public class TriMatrix extends Matrix {
         if(A.m != diag.length || A.n != diag.length){
             throw new MatrixException("Can't add these matricies");
         }
-        else if (A instanceof GeneralMatrix){
-            return A.add(this);
+        Matrix sum = A.addTo(this);
+        if(sum != null){
+            return sum;
         }
-        Matrix result = new GeneralMatrix(m,n);
+        GeneralMatrix result = new GeneralMatrix(m,n);
         for(int i = 0; i < m; i++){
             for(int j = 0; j < n ; j++){
-                result.setIJ(i,j,(getIJ(i,j) + A.getIJ(i,j)));
+                result.setIJ(i,j,A.getIJ(i,j));
             }
         }
+        addDiagonals(result);
+        return result;
+    }
+
+    Matrix addTo(GeneralMatrix A) {
+        GeneralMatrix result = new GeneralMatrix(A);
+        addDiagonals(result);
         return result;
     }
 
+    Matrix addTo(TriMatrix A) {
+        TriMatrix result = new TriMatrix(diag.length);
+        Kernels.add(diag.length, A.diag, 0, diag, 0, result.diag, 0);
+        Kernels.add(lower.length, A.lower, 0, lower, 0, result.lower, 0);
+        Kernels.add(upper.length, A.upper, 0, upper, 0, result.upper, 0);
+        return result;
+    }
+
+    Matrix addTo(BandMatrix A) {
+        return toBand().addTo(A);
+    }
+
+    /**
+     * Adds the three diagonals of this matrix to G in place.
+     */
+    private void addDiagonals(GeneralMatrix G) {
+        double[] g = G.array();
+        int go = G.offset(), gs = G.stride();
+        for(int i = 0; i < diag.length; i++){
+            int r = go + i*gs + i;
+            g[r] += diag[i];
+            if(i > 0){
+                g[r-1] += lower[i-1];
+            }
+            if(i < diag.length-1){
+                g[r+1] += upper[i];
+            }
+        }
+    }
+
+    /**
+     * @return This matrix as a BandMatrix with one diagonal either side.
+     */
+    BandMatrix toBand() {
+        int N = diag.length, w = Math.min(1, N-1);
+        BandMatrix B = new BandMatrix(N, w, w);
+        for(int i = 0; i < N; i++){
+            int r = i*B.ldab + B.kl;
+            B.ab[r] = diag[i];
+            if(i > 0){
+                B.ab[r-1] = lower[i-1];
+            }
+            if(i < N-1){
+                B.ab[r+1] = upper[i];
+            }
+        }
+        return B;
+    }
+
     /**
      * Multiply the matrix by another matrix A. This is a left product,
      * i.e. if this matrix is called B then it calculates the product BA.
+     * The product with a TriMatrix is a pentadiagonal BandMatrix and with
+     * a BandMatrix a BandMatrix one wider on each side, both in O(n).
      *
      * @param A  The Matrix to multiply by.
      * @return   The product of this matrix with the matrix A.
@@ -154,52 +474,141 @@ public class TriMatrix extends Matrix {
         if(diag.length != A.m){
             throw new MatrixException("Can't multiply these matricies");
         }
-        double[][] values = new double[diag.length][A.n];
-        for(int i = 0; i < diag.length; i++){
+        Matrix product = A.multiplyLeftBy(this);
+        if(product != null){
+            return product;
+        }
+        int N = diag.length;
+        GeneralMatrix result = new GeneralMatrix(N, A.n);
+        double[] c = result.array();
+        int cs = result.stride();
+        for(int i = 0; i < N; i++){
             for(int j = 0; j < A.n; j++){
-                for(int k = 0; k < n; k++){
-                    values[i][j] += getIJ(i,k)*A.getIJ(k,j);
+                double sum = diag[i]*A.getIJ(i,j);
+                if(i > 0){
+                    sum += lower[i-1]*A.getIJ(i-1,j);
+                }
+                if(i < N-1){
+                    sum += upper[i]*A.getIJ(i+1,j);
                 }
+                c[i*cs+j] = sum;
             }
         }
-        Matrix result = new GeneralMatrix(diag.length,A.n);
-        for(int x = 0; x < diag.length; x++){
-            for(int y = 0; y < A.n; y++){
-                result.setIJ(x,y,values[x][y]);
+        return result;
+    }
+
+    Matrix multiplyLeftBy(GeneralMatrix A) {
+        // Only three entries in each column of this matrix are non-zero.
+        GeneralMatrix result = new GeneralMatrix(A.m, diag.length);
+        multiplyLeft(A, result);
+        return result;
+    }
+
+    Matrix multiplyLeftBy(TriMatrix A) {
+        return A.toBand().multiplyBand(toBand());
+    }
+
+    Matrix multiplyLeftBy(BandMatrix A) {
+        return A.multiplyBand(toBand());
+    }
+
+    /**
+     * Computes the product TB, where T is this matrix. Row i of the product
+     * only involves rows i-1, i and i+1 of B, so this is O(n) work per
+     * column rather than O(n^2).
+     *
+     * @param B  The matrix on the right of the product.
+     * @return   The product.
+     */
+    GeneralMatrix multiplyDense(GeneralMatrix B) {
+        int N = diag.length;
+        GeneralMatrix result = new GeneralMatrix(N, B.n);
+        double[] c = result.array();
+        int cs = result.stride();
+        double[] b = B.array();
+        int bo = B.offset(), bs = B.stride();
+        for(int i = 0; i < N; i++){
+            int r = i*cs, bi = bo + i*bs;
+            for(int j = 0; j < B.n; j++){
+                c[r+j] = diag[i]*b[bi+j];
+            }
+            if(i > 0){
+                double l = lower[i-1];
+                for(int j = 0; j < B.n; j++){
+                    c[r+j] += l*b[bi-bs+j];
+                }
+            }
+            if(i < N-1){
+                double u = upper[i];
+                for(int j = 0; j < B.n; j++){
+                    c[r+j] += u*b[bi+bs+j];
+                }
             }
         }
         return result;
     }
 
     /**
-     * Multiply the matrix by a scalar.
+     * Computes the product BT, where T is this matrix, writing it directly
+     * into result. Column j of the product only involves columns j-1, j and
+     * j+1 of B.
+     *
+     * @param B       The matrix on the left of the product.
+     * @param result  A B.m x n matrix to hold the product.
+     */
+    void multiplyLeft(GeneralMatrix B, GeneralMatrix result) {
+        int N = diag.length;
+        double[] b = B.array(), c = result.array();
+        int bo = B.offset(), bs = B.stride(), cs = result.stride();
+        for(int i = 0; i < B.m; i++){
+            int bi = bo + i*bs, r = i*cs;
+            for(int j = 0; j < N; j++){
+                double sum = b[bi+j]*diag[j];
+                if(j > 0){
+                    sum += b[bi+j-1]*upper[j-1];
+                }
+                if(j < N-1){
+                    sum += b[bi+j+1]*lower[j];
+                }
+                c[r+j] = sum;
+            }
+        }
+    }
+
+    /**
+     * Multiply the matrix by a scalar, which only touches the three
+     * diagonals.
      *
      * @param a  The scalar to multiply the matrix by.
      * @return   The product of this matrix with the scalar a.
      */
     public Matrix multiply(double a) {
-        Matrix result = new TriMatrix(diag.length);
-        for(int i = 0; i < diag.length; i++){
-            for(int j = 0; j < diag.length; j++){
-                result.setIJ(i,j,(getIJ(i,j)*a));
-            }
-        }
+        TriMatrix result = new TriMatrix(diag.length);
+        Kernels.scale(diag.length, a, diag, 0, result.diag, 0);
+        Kernels.scale(lower.length, a, lower, 0, result.lower, 0);
+        Kernels.scale(upper.length, a, upper, 0, result.upper, 0);
         return result;
     }
 
     /**
      * Populates the matrix with random numbers which are uniformly
-     * distributed between 0 and 1.
+     * distributed between 0 and 1, drawn from the current thread's
+     * generator (see RandomFill).
      */
     public void random() {
-        Random rand = new Random();
-        for(int i = 0; i < diag.length; i++){
-            diag[i] = rand.nextDouble();
-        }
-        for(int j = 0; j < diag.length-1; j++){
-            lower[j] = rand.nextDouble();
-            upper[j] = rand.nextDouble();
-        }
+        random(RandomFill.current());
+    }
+
+    /**
+     * Populates the matrix with random numbers which are uniformly
+     * distributed between 0 and 1, drawn from the given generator.
+     *
+     * @param rand  The source of random numbers.
+     */
+    public void random(RandomGenerator rand) {
+        RandomFill.fill(diag, 0, diag.length, rand);
+        RandomFill.fill(lower, 0, lower.length, rand);
+        RandomFill.fill(upper, 0, upper.length, rand);
     }
 
     /*
@@ -0,0 +1,225 @@
+/*
+ * This class contains the parallel routines for large tri-diagonal
+ * matrices used by TriMatrix. The matrix is described by the arrays lower,
+ * diag and upper exactly as in TriMatrix, with entry (i+1,i) in lower[i]
+ * and entry (i,i+1) in upper[i].
+ *
+ * Both routines cut the matrix into P contiguous partitions, do almost all
+ * of the work independently inside each partition on a ForkJoinPool and
+ * then couple the partitions through a small system of size O(P).
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+class TriParallel {
+    /**
+     * The smallest number of rows worth giving to a partition. Matrices
+     * smaller than two partitions are handled serially.
+     */
+    static final int MIN_PARTITION = 1 << 14;
+
+    private TriParallel() {}
+
+    /**
+     * Returns the number of partitions to use for an n x n matrix: a few
+     * per worker thread for load balancing, but none smaller than
+     * MIN_PARTITION.
+     */
+    static int partitions(int n) {
+        return Math.max(1, Math.min(4*DenseLU.getParallelism(), n/MIN_PARTITION));
+    }
+
+    /**
+     * Solves Tx = b with a partitioned (SPIKE-style) algorithm.
+     *
+     * Write the rows of partition k as A_k x_k + l e_0 x[s-1] + u e_last x[e]
+     * = b_k, where A_k is the tri-diagonal block on the diagonal and the
+     * other two terms couple it to its neighbours. Each partition solves
+     * A_k y = b_k, A_k v = l e_0 and A_k w = u e_last in one Thomas sweep,
+     * so that x_k = y - v x[s-1] - w x[e]. Writing this down for the first
+     * and last row of every partition gives a banded system of size
+     * 2(P-1) for the unknowns at the partition boundaries, which is solved
+     * directly. Finally every partition recovers the rest of x_k in
+     * parallel.
+     *
+     * There is no pivoting within partitions, so like the Thomas algorithm
+     * this suits diagonally dominant matrices.
+     *
+     * @param b     On entry the right-hand side, on exit the solution.
+     * @param pool  The pool to run the partitions on.
+     */
+    static void solve(double[] lower, double[] diag, double[] upper, double[] b,
+                      ForkJoinPool pool) {
+        int N = diag.length, P = partitions(N);
+        int[] start = new int[P+1];
+        for (int k = 0; k <= P; k++)
+            start[k] = (int) ((long) k*N/P);
+
+        double[] v = new double[N], w = new double[N], work = new double[N];
+
+        run(pool, P, k -> {
+            int s = start[k], e = start[k+1];
+            double l = k > 0 ? lower[s-1] : 0.0;
+            double u = k < P-1 ? upper[e-1] : 0.0;
+
+            double pivot = diag[s];
+            if (pivot == 0.0)
+                throw new MatrixException("Zero pivot in tridiagonal solve");
+            b[s] /= pivot;
+            v[s] = l/pivot;
+            w[s] = (s == e-1 ? u : 0.0)/pivot;
+            for (int i = s+1; i < e; i++) {
+                work[i-1] = upper[i-1]/pivot;
+                pivot = diag[i] - lower[i-1]*work[i-1];
+                if (pivot == 0.0)
+                    throw new MatrixException("Zero pivot in tridiagonal solve");
+                b[i] = (b[i] - lower[i-1]*b[i-1])/pivot;
+                v[i] = -lower[i-1]*v[i-1]/pivot;
+                w[i] = ((i == e-1 ? u : 0.0) - lower[i-1]*w[i-1])/pivot;
+            }
+            for (int i = e-2; i >= s; i--) {
+                b[i] -= work[i]*b[i+1];
+                v[i] -= work[i]*v[i+1];
+                w[i] -= work[i]*w[i+1];
+            }
+        });
+
+        // The reduced system. Unknown 2k is the last entry of partition k
+        // and unknown 2k+1 the first entry of partition k+1.
+        int R = 2*(P-1);
+        GeneralMatrix Z = new GeneralMatrix(R, R);
+        double[] r = new double[R];
+        for (int k = 0; k < P-1; k++) {
+            int last = start[k+1]-1, first = start[k+1];
+            Z.setIJ(2*k, 2*k, 1.0);
+            if (k > 0)
+                Z.setIJ(2*k, 2*k-2, v[last]);
+            Z.setIJ(2*k, 2*k+1, w[last]);
+            r[2*k] = b[last];
+
+            Z.setIJ(2*k+1, 2*k+1, 1.0);
+            Z.setIJ(2*k+1, 2*k, v[first]);
+            if (k+1 < P-1)
+                Z.setIJ(2*k+1, 2*k+3, w[first]);
+            r[2*k+1] = b[first];
+        }
+        double[] z = Z.lu().solve(r);
+
+        run(pool, P, k -> {
+            double left  = k > 0 ? z[2*k-2] : 0.0;
+            double right = k < P-1 ? z[2*k+1] : 0.0;
+            for (int i = start[k]; i < start[k+1]; i++)
+                b[i] -= v[i]*left + w[i]*right;
+        });
+    }
+
+    /**
+     * Computes the determinant in scaled form from the three-term
+     * recurrence for the leading principal minors,
+     *
+     *   f_{k+1} = diag[k] f_k - lower[k-1] upper[k-1] f_{k-1},
+     *
+     * written as a product of 2 x 2 transfer matrices. Matrix products are
+     * associative, so each partition multiplies its own stretch of the
+     * recurrence and the P partial products are combined in order at the
+     * end. Each partial product is renormalised by a power of two after
+     * every step, with the exponent kept separately, so nothing overflows.
+     * No divisions are involved, so zero leading minors are no problem.
+     *
+     * @param pool  The pool to run the partitions on.
+     * @return      The determinant in scaled form.
+     */
+    static ScaledDeterminant determinant(double[] lower, double[] diag, double[] upper,
+                                         ForkJoinPool pool) {
+        int N = diag.length;
+        // The transfer matrices are numbered 1..N-1.
+        int P = partitions(N);
+        int[] start = new int[P+1];
+        for (int k = 0; k <= P; k++)
+            start[k] = 1 + (int) ((long) k*(N-1)/P);
+
+        double[][] q = new double[P][];
+        long[] exps = new long[P];
+
+        run(pool, P, k -> {
+            double a = 1.0, b = 0.0, c = 0.0, d = 1.0;
+            long e = 0;
+            for (int i = start[k]; i < start[k+1]; i++) {
+                // [a b; c d] = [diag[i] -lu; 1 0] * [a b; c d]
+                double lu = lower[i-1]*upper[i-1];
+                double na = diag[i]*a - lu*c;
+                double nb = diag[i]*b - lu*d;
+                c = a;
+                d = b;
+                a = na;
+                b = nb;
+                double big = Math.max(Math.max(Math.abs(a), Math.abs(b)),
+                                      Math.max(Math.abs(c), Math.abs(d)));
+                if (big != 0.0 && !Double.isInfinite(big) && !Double.isNaN(big)) {
+                    int s = Math.getExponent(big) + 1;
+                    a = Math.scalb(a, -s);
+                    b = Math.scalb(b, -s);
+                    c = Math.scalb(c, -s);
+                    d = Math.scalb(d, -s);
+                    e += s;
+                }
+            }
+            q[k] = new double[] {a, b, c, d};
+            exps[k] = e;
+        });
+
+        // Apply the partial products in order to [f_1; f_0] = [diag[0]; 1].
+        double f1 = diag[0], f0 = 1.0;
+        long e = 0;
+        for (int k = 0; k < P; k++) {
+            double[] m = q[k];
+            double n1 = m[0]*f1 + m[1]*f0;
+            double n0 = m[2]*f1 + m[3]*f0;
+            f1 = n1;
+            f0 = n0;
+            e += exps[k];
+            double big = Math.max(Math.abs(f1), Math.abs(f0));
+            if (big != 0.0 && !Double.isInfinite(big) && !Double.isNaN(big)) {
+                int s = Math.getExponent(big) + 1;
+                f1 = Math.scalb(f1, -s);
+                f0 = Math.scalb(f0, -s);
+                e += s;
+            }
+        }
+        ScaledDeterminant.Accumulator result = new ScaledDeterminant.Accumulator(1.0);
+        result.multiply(f1);
+        result.multiplyPow2(e);
+        return result.result();
+    }
+
+    /**
+     * Runs body for every partition 0..P-1 on the pool and waits for all of
+     * them to finish.
+     */
+    private static void run(ForkJoinPool pool, int P, IntConsumer body) {
+        pool.invoke(new Parts(body, 0, P));
+    }
+
+    @SuppressWarnings("serial")
+    private static class Parts extends RecursiveAction {
+        private final IntConsumer body;
+        private final int lo, hi;
+
+        Parts(IntConsumer body, int lo, int hi) {
+            this.body = body;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                body.accept(lo);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Parts(body, lo, mid), new Parts(body, mid, hi));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * Names the BenchmarkCases operation that a benchmark method times.
+ */
+
+package bench;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Case {
+    /**
+     * The name of the operation, e.g. "TriMatrix.solve".
+     */
+    String value();
+}
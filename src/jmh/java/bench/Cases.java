@@ -0,0 +1,59 @@
+/*
+ * This class connects the benchmarks to BenchmarkCases, which lives in the
+ * default package with the rest of the library and so can only be reached
+ * through reflection. The reflection happens once, in each benchmark's
+ * setup; the timed code only calls the DoubleSupplier that comes back.
+ * Since JMH forks a JVM for every benchmark and parameter, that call site
+ * only ever sees one implementation.
+ */
+
+package bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+final class Cases {
+    private Cases() {
+    }
+
+    /**
+     * Returns the operation named by the @Case annotation of the benchmark
+     * method that is about to run.
+     *
+     * @param params The parameters of the running benchmark.
+     * @return The name of its operation.
+     */
+    static String name(BenchmarkParams params) {
+        String benchmark = params.getBenchmark();
+        int dot = benchmark.lastIndexOf('.');
+        try {
+            Method m = Class.forName(benchmark.substring(0, dot)).getMethod(benchmark.substring(dot + 1));
+            return m.getAnnotation(Case.class).value();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot find benchmark method " + benchmark, e);
+        }
+    }
+
+    /**
+     * Sets up an operation through BenchmarkCases.create.
+     *
+     * @param name The name of the operation.
+     * @param n    The size of the matrices.
+     * @return The operation, ready to be timed.
+     */
+    static DoubleSupplier create(String name, int n) {
+        try {
+            Method create = Class.forName("BenchmarkCases").getMethod("create", String.class, int.class);
+            return (DoubleSupplier) create.invoke(null, name, n);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot reach BenchmarkCases", e);
+        }
+    }
+}
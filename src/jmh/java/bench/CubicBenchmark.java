@@ -0,0 +1,51 @@
+/*
+ * Times the other O(n^3) dense operations, up to n = 2000.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CubicBenchmark {
+    @Param({"2", "4", "8", "16", "50", "100", "250", "500", "1000", "2000"})
+    public int n;
+
+    private DoubleSupplier op;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        op = Cases.create(Cases.name(params), n);
+    }
+
+    @Benchmark
+    @Case("GeneralMatrix.multiply(Matrix)")
+    public double multiply() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("OffHeapMatrix.decompInPlace")
+    public double offHeapDecompInPlace() {
+        return op.getAsDouble();
+    }
+}
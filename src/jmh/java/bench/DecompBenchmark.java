@@ -0,0 +1,55 @@
+/*
+ * Times the dense LU decomposition and determinant for each algorithm,
+ * up to n = 2000.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecompBenchmark {
+    @Param({"2", "4", "8", "16", "50", "100", "250", "500", "1000", "2000"})
+    public int n;
+
+    @Param({"CROUT", "BLOCKED", "PARALLEL"})
+    public String algorithm;
+
+    private DoubleSupplier op;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        op = Cases.create(Cases.name(params) + ":" + algorithm, n);
+    }
+
+    @Benchmark
+    @Case("GeneralMatrix.decomp")
+    public double decomp() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("GeneralMatrix.determinant")
+    public double determinant() {
+        return op.getAsDouble();
+    }
+}
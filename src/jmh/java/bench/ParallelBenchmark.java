@@ -0,0 +1,53 @@
+/*
+ * Times the parallel tridiagonal routines. These only split the work once
+ * n is at least 2*TriParallel.MIN_PARTITION = 32768, so they are timed
+ * from 10^5 to 10^7.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelBenchmark {
+    @Param({"100000", "1000000", "10000000"})
+    public int n;
+
+    private DoubleSupplier op;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        op = Cases.create(Cases.name(params), n);
+    }
+
+    @Benchmark
+    @Case("TriMatrix.solveParallel")
+    public double solveParallel() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("TriMatrix.scaledDeterminantParallel")
+    public double scaledDeterminantParallel() {
+        return op.getAsDouble();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Times sampling the determinants of dense matrices. Each operation does
+ * 100 decompositions, so the sizes stop at 250, where it takes about
+ * 0.2 s.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplingBenchmark {
+    @Param({"2", "4", "8", "16", "50", "100", "250"})
+    public int n;
+
+    private DoubleSupplier op;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        op = Cases.create(Cases.name(params), n);
+    }
+
+    @Benchmark
+    @Case("DeterminantDistribution.matVariance:GeneralMatrix")
+    public double generalVariance() {
+        return op.getAsDouble();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Times the dense operations that take O(n^2) time and the tridiagonal
+ * and band ones that take O(n), up to n = 4000.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubcubicBenchmark {
+    @Param({"2", "4", "8", "16", "50", "100", "250", "500", "1000", "2000", "4000"})
+    public int n;
+
+    private DoubleSupplier op;
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        op = Cases.create(Cases.name(params), n);
+    }
+
+    @Benchmark
+    @Case("GeneralMatrix.add")
+    public double add() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("GeneralMatrix.random")
+    public double random() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("TriMatrix.decomp")
+    public double triDecomp() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("TriMatrix.determinant")
+    public double triDeterminant() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("TriMatrix.solve")
+    public double triSolve() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("BandMatrix.determinant:pentadiagonal")
+    public double bandDeterminant() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("BandMatrix.solve:pentadiagonal")
+    public double bandSolve() {
+        return op.getAsDouble();
+    }
+
+    @Benchmark
+    @Case("DeterminantDistribution.matVariance:TriMatrix")
+    public double triVariance() {
+        return op.getAsDouble();
+    }
+}